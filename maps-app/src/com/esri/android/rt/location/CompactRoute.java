@@ -0,0 +1,224 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polyline;
+import com.esri.core.tasks.na.Route;
+
+/**
+ * The parts of a solved route the app draws, held in primitive arrays so it
+ * can be cached and stored cheaply: the route geometry, its envelope and the
+ * route summary.
+ */
+public class CompactRoute {
+
+	// route geometry as x,y pairs, paths start at the given vertex indices
+	final double[] mCoords;
+	final int[] mPathStarts;
+	// xmin, ymin, xmax, ymax
+	final double[] mEnvelope;
+	// stop locations the route was solved for, as x,y pairs
+	final double[] mStops;
+	final String mName;
+	final double mTotalMiles;
+	final double mTotalMinutes;
+	final long mCreated;
+	// cache key this route is stored under
+	String mKey;
+	// set when the route was read from the cache rather than solved
+	boolean mFromCache;
+
+	CompactRoute(double[] coords, int[] pathStarts, double[] envelope,
+			double[] stops, String name, double totalMiles,
+			double totalMinutes, long created) {
+		mCoords = coords;
+		mPathStarts = pathStarts;
+		mEnvelope = envelope;
+		mStops = stops;
+		mName = name;
+		mTotalMiles = totalMiles;
+		mTotalMinutes = totalMinutes;
+		mCreated = created;
+	}
+
+	/**
+	 * Copy the geometry and summary of a solved route.
+	 *
+	 * @param stops
+	 *            the stops the route was solved for
+	 */
+	public static CompactRoute fromRoute(Route route, Point[] stops) {
+		Polyline line = (Polyline) route.getRouteGraphic().getGeometry();
+		int count = line.getPointCount();
+		double[] coords = new double[count * 2];
+		for (int i = 0; i < count; i++) {
+			Point point = line.getPoint(i);
+			coords[i * 2] = point.getX();
+			coords[i * 2 + 1] = point.getY();
+		}
+		int[] pathStarts = new int[line.getPathCount()];
+		for (int i = 0; i < pathStarts.length; i++) {
+			pathStarts[i] = line.getPathStart(i);
+		}
+		Envelope env = route.getEnvelope();
+		double[] envelope = new double[] { env.getXMin(), env.getYMin(),
+				env.getXMax(), env.getYMax() };
+		double[] stopCoords = new double[stops.length * 2];
+		for (int i = 0; i < stops.length; i++) {
+			stopCoords[i * 2] = stops[i].getX();
+			stopCoords[i * 2 + 1] = stops[i].getY();
+		}
+		return new CompactRoute(coords, pathStarts, envelope, stopCoords,
+				route.getRouteName(), route.getTotalMiles(),
+				route.getTotalMinutes(), System.currentTimeMillis());
+	}
+
+	/**
+	 * @return a new polyline of the route geometry
+	 */
+	public Polyline toPolyline() {
+		Polyline line = new Polyline();
+		int count = mCoords.length / 2;
+		for (int path = 0; path < mPathStarts.length; path++) {
+			int start = mPathStarts[path];
+			int end = path + 1 < mPathStarts.length ? mPathStarts[path + 1]
+					: count;
+			for (int i = start; i < end; i++) {
+				if (i == start)
+					line.startPath(mCoords[i * 2], mCoords[i * 2 + 1]);
+				else
+					line.lineTo(mCoords[i * 2], mCoords[i * 2 + 1]);
+			}
+		}
+		return line;
+	}
+
+	public Envelope getEnvelope() {
+		return new Envelope(mEnvelope[0], mEnvelope[1], mEnvelope[2],
+				mEnvelope[3]);
+	}
+
+	/**
+	 * @return the final vertex of the route, where the finish is drawn
+	 */
+	public Point getEndPoint() {
+		int last = mCoords.length / 2 - 1;
+		return new Point(mCoords[last * 2], mCoords[last * 2 + 1]);
+	}
+
+	/**
+	 * @return the stops the route was solved for
+	 */
+	public Point[] getStops() {
+		Point[] stops = new Point[mStops.length / 2];
+		for (int i = 0; i < stops.length; i++) {
+			stops[i] = new Point(mStops[i * 2], mStops[i * 2 + 1]);
+		}
+		return stops;
+	}
+
+	public int getVertexCount() {
+		return mCoords.length / 2;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public double getTotalMiles() {
+		return mTotalMiles;
+	}
+
+	public double getTotalMinutes() {
+		return mTotalMinutes;
+	}
+
+	/**
+	 * @return time the route was solved, in milliseconds since the epoch
+	 */
+	public long getCreated() {
+		return mCreated;
+	}
+
+	public String getKey() {
+		return mKey;
+	}
+
+	public boolean isFromCache() {
+		return mFromCache;
+	}
+
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeLong(mCreated);
+		out.writeUTF(mName == null ? "" : mName);
+		out.writeDouble(mTotalMiles);
+		out.writeDouble(mTotalMinutes);
+		writeDoubles(out, mEnvelope);
+		writeDoubles(out, mStops);
+		out.writeInt(mPathStarts.length);
+		for (int start : mPathStarts) {
+			out.writeInt(start);
+		}
+		writeDoubles(out, mCoords);
+	}
+
+	static CompactRoute readFrom(DataInputStream in) throws IOException {
+		long created = in.readLong();
+		String name = in.readUTF();
+		double miles = in.readDouble();
+		double minutes = in.readDouble();
+		double[] envelope = readDoubles(in);
+		double[] stops = readDoubles(in);
+		int[] pathStarts = new int[in.readInt()];
+		for (int i = 0; i < pathStarts.length; i++) {
+			pathStarts[i] = in.readInt();
+		}
+		double[] coords = readDoubles(in);
+		return new CompactRoute(coords, pathStarts, envelope, stops, name,
+				miles, minutes, created);
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values)
+			throws IOException {
+		out.writeInt(values.length);
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	private static double[] readDoubles(DataInputStream in) throws IOException {
+		double[] values = new double[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+}
@@ -24,10 +24,14 @@
 
 package com.esri.android.rt.location;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.arcgis.android.app.map.R;
 import com.esri.android.rt.map.MapsApp;
 
 import android.os.Bundle;
+import android.text.InputType;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
@@ -35,12 +39,15 @@ import android.view.Menu;
 import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 
 public class DirectionsActivity extends Activity {
 
 	// UI definitions
 	EditText startText;
 	EditText endText;
+	// start, intermediate and destination text boxes in route order
+	LinearLayout stopsLayout;
 
 	int basemap;
 
@@ -51,6 +58,7 @@ public class DirectionsActivity extends Activity {
 
 		startText = (EditText) findViewById(R.id.myLocation);
 		endText = (EditText) findViewById(R.id.endPoint);
+		stopsLayout = (LinearLayout) findViewById(R.id.stops);
 		Bundle extras = getIntent().getExtras();
 		basemap = extras.getInt("basemap");
 
@@ -61,18 +69,31 @@ public class DirectionsActivity extends Activity {
 		InputMethodManager inputManager = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
 		inputManager.hideSoftInputFromWindow(
 				getCurrentFocus().getWindowToken(), 0);
-		// obtain start and end points
-		String startPoint = startText.getText().toString();
-		String endPoint = endText.getText().toString();
+		// obtain start, intermediate and end points, skipping empty stops
+		List<String> stops = new ArrayList<String>();
+		for (int i = 0; i < stopsLayout.getChildCount(); i++) {
+			String stop = ((EditText) stopsLayout.getChildAt(i)).getText()
+					.toString().trim();
+			if (stop.length() > 0)
+				stops.add(stop);
+		}
 		// send to BasemapsActivity for routing
 		Intent intent = new Intent(DirectionsActivity.this, MapsApp.class);
-		intent.putExtra("start", startPoint);
-		intent.putExtra("end", endPoint);
+		intent.putExtra("stops", stops.toArray(new String[stops.size()]));
 		intent.putExtra("basemap", basemap);
 		startActivity(intent);
 
 	}
 
+	public void addStop(View view) {
+		// add an intermediate stop above the destination
+		EditText stopText = new EditText(this);
+		stopText.setHint(getString(R.string.stop_hint));
+		stopText.setInputType(InputType.TYPE_CLASS_TEXT);
+		stopsLayout.addView(stopText, stopsLayout.getChildCount() - 1);
+		stopText.requestFocus();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
@@ -0,0 +1,314 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.esri.android.rt.location.GazetteerIndex.Place;
+
+/**
+ * Builds the offline {@link GazetteerIndex} from a gazetteer bundled in the
+ * app assets or imported into the app's external files directory.
+ *
+ * Two source formats are read:
+ * <ul>
+ * <li>CSV with a header row naming a name (or address) column and longitude
+ * and latitude (or x and y) columns</li>
+ * <li>GeoJSON feature collections of points with a name or address property,
+ * read as a stream</li>
+ * </ul>
+ */
+public class GazetteerBuilder {
+
+	private static final String TAG = "GazetteerBuilder";
+
+	// source file names looked up in assets and the external files directory
+	static final String CSV_SOURCE = "gazetteer.csv";
+	static final String GEOJSON_SOURCE = "gazetteer.geojson";
+	// built index in the internal files directory
+	static final String INDEX_FILE = "gazetteer.idx";
+
+	private GazetteerBuilder() {
+	}
+
+	/**
+	 * Open the index, building it first if it is missing or an imported
+	 * gazetteer is newer than it. Reads files so must not be called on the UI
+	 * thread.
+	 *
+	 * @return the index or null when no gazetteer is available
+	 */
+	public static GazetteerIndex openOrBuild(Context context) {
+		File index = new File(context.getFilesDir(), INDEX_FILE);
+		try {
+			File imported = findImported(context);
+			if (imported != null
+					&& (!index.exists() || imported.lastModified() > index
+							.lastModified())) {
+				InputStream in = new FileInputStream(imported);
+				try {
+					build(in, imported.getName(), index);
+				} finally {
+					in.close();
+				}
+			} else if (!index.exists()) {
+				if (!buildFromAssets(context, index))
+					return null;
+			}
+			return GazetteerIndex.open(index);
+		} catch (Exception e) {
+			Log.w(TAG, "offline gazetteer unavailable", e);
+			return null;
+		}
+	}
+
+	private static File findImported(Context context) {
+		File dir = context.getExternalFilesDir(null);
+		if (dir == null)
+			return null;
+		File csv = new File(dir, CSV_SOURCE);
+		File geojson = new File(dir, GEOJSON_SOURCE);
+		if (csv.exists() && geojson.exists())
+			return csv.lastModified() > geojson.lastModified() ? csv : geojson;
+		if (csv.exists())
+			return csv;
+		return geojson.exists() ? geojson : null;
+	}
+
+	private static boolean buildFromAssets(Context context, File index)
+			throws IOException {
+		String[] assets = context.getAssets().list("");
+		if (assets == null)
+			return false;
+		for (String name : assets) {
+			if (CSV_SOURCE.equals(name) || GEOJSON_SOURCE.equals(name)) {
+				InputStream in = context.getAssets().open(name);
+				try {
+					build(in, name, index);
+				} finally {
+					in.close();
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parse a gazetteer and write its index.
+	 *
+	 * @param name
+	 *            source file name, its extension selects the format
+	 */
+	public static void build(InputStream in, String name, File index)
+			throws IOException {
+		List<Place> places;
+		if (name.toLowerCase(Locale.US).endsWith(".csv"))
+			places = readCsv(in);
+		else
+			places = readGeoJson(in);
+		GazetteerIndex.write(places, index);
+		Log.i(TAG, "indexed " + places.size() + " places from " + name);
+	}
+
+	static List<Place> readCsv(InputStream in) throws IOException {
+		List<Place> places = new ArrayList<Place>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		String line = reader.readLine();
+		if (line == null)
+			return places;
+		List<String> header = splitCsv(line);
+		int nameColumn = column(header, "name", "address", "place");
+		int xColumn = column(header, "longitude", "lon", "lng", "x");
+		int yColumn = column(header, "latitude", "lat", "y");
+		if (nameColumn < 0 || xColumn < 0 || yColumn < 0)
+			throw new IOException("gazetteer header needs name, x and y columns");
+
+		while ((line = reader.readLine()) != null) {
+			List<String> values = splitCsv(line);
+			int needed = Math.max(nameColumn, Math.max(xColumn, yColumn));
+			if (values.size() <= needed)
+				continue;
+			try {
+				double x = Double.parseDouble(values.get(xColumn).trim());
+				double y = Double.parseDouble(values.get(yColumn).trim());
+				places.add(new Place(values.get(nameColumn).trim(), x, y));
+			} catch (NumberFormatException e) {
+				// skip malformed rows
+			}
+		}
+		return places;
+	}
+
+	private static int column(List<String> header, String... names) {
+		for (String name : names) {
+			for (int i = 0; i < header.size(); i++) {
+				if (header.get(i).trim().equalsIgnoreCase(name))
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Split a CSV line honouring double quoted values.
+	 */
+	private static List<String> splitCsv(String line) {
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					value.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if (c == ',' && !quoted) {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	/*
+	 * Stream the features of a GeoJSON feature collection, so a large
+	 * gazetteer isn't held in memory as text.
+	 */
+	static List<Place> readGeoJson(InputStream in) throws IOException {
+		List<Place> places = new ArrayList<Place>();
+		JsonParser parser = new JsonFactory().createJsonParser(in);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("gazetteer is not a GeoJSON object");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("features".equals(field) && token == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						Place place = readFeature(parser);
+						if (place != null)
+							places.add(place);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return places;
+	}
+
+	/*
+	 * Read a feature from its opening brace to its closing one.
+	 *
+	 * @return the place or null if the feature isn't a named point
+	 */
+	private static Place readFeature(JsonParser parser) throws IOException {
+		String name = null;
+		String address = null;
+		boolean point = false;
+		double[] coordinates = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("geometry".equals(field) && token == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String member = parser.getCurrentName();
+					token = parser.nextToken();
+					if ("type".equals(member) && token == JsonToken.VALUE_STRING)
+						point = "Point".equals(parser.getText());
+					else if ("coordinates".equals(member)
+							&& token == JsonToken.START_ARRAY)
+						coordinates = readPosition(parser);
+					else
+						parser.skipChildren();
+				}
+			} else if ("properties".equals(field)
+					&& token == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String property = parser.getCurrentName();
+					token = parser.nextToken();
+					if (token != JsonToken.VALUE_STRING)
+						parser.skipChildren();
+					else if ("name".equals(property))
+						name = parser.getText();
+					else if ("address".equals(property))
+						address = parser.getText();
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (name == null)
+			name = address;
+		if (!point || name == null || coordinates == null)
+			return null;
+		return new Place(name, coordinates[0], coordinates[1]);
+	}
+
+	/*
+	 * Read the x and y of a position array, skipping anything after them.
+	 *
+	 * @return x and y, or null if the array holds no two numbers
+	 */
+	private static double[] readPosition(JsonParser parser) throws IOException {
+		double[] position = new double[2];
+		int count = 0;
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY
+				&& token != null) {
+			if (count < 2
+					&& (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT))
+				position[count++] = parser.getDoubleValue();
+			else
+				parser.skipChildren();
+		}
+		return count == 2 ? position : null;
+	}
+}
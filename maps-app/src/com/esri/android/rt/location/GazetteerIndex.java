@@ -0,0 +1,291 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Read only prefix index of place names and addresses stored in a single
+ * memory mapped file. Opening the index only maps the file, lookups binary
+ * search a sorted table of normalized keys and walk forward while the keys
+ * share the query prefix.
+ *
+ * Every place is indexed under its full name and under the name starting at
+ * each of its next few words, so "main st" finds "123 Main St".
+ *
+ * File layout, big endian:
+ * <pre>
+ * int magic, int version, int entry count, int place count
+ * entry table:  int key offset, int place index   (sorted by key bytes)
+ * place table:  int label offset, double longitude, double latitude
+ * strings:      short length, UTF-8 bytes
+ * </pre>
+ */
+public class GazetteerIndex {
+
+	private static final int MAGIC = 0x47415a31; // "GAZ1"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int ENTRY_BYTES = 8;
+	private static final int PLACE_BYTES = 20;
+	// number of leading words a place is also indexed without
+	private static final int MAX_WORD_SUFFIXES = 4;
+
+	private final MappedByteBuffer mBuffer;
+	private final int mEntryCount;
+	private final int mPlaceCount;
+	private final int mPlaceTable;
+
+	private GazetteerIndex(MappedByteBuffer buffer) throws IOException {
+		mBuffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("not a gazetteer index");
+		mEntryCount = buffer.getInt(8);
+		mPlaceCount = buffer.getInt(12);
+		mPlaceTable = HEADER_BYTES + mEntryCount * ENTRY_BYTES;
+	}
+
+	/**
+	 * Map an index file built by {@link #write(List, File)}.
+	 */
+	public static GazetteerIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new GazetteerIndex(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public int getPlaceCount() {
+		return mPlaceCount;
+	}
+
+	/**
+	 * Find places whose name, or the name without its first few words,
+	 * starts with the query.
+	 *
+	 * @param query
+	 *            free text, normalized the same way as the index
+	 * @param max
+	 *            maximum number of places returned
+	 */
+	public List<Place> find(String query, int max) {
+		List<Place> places = new ArrayList<Place>();
+		byte[] prefix = utf8(GeocodeCache.normalize(query));
+		if (prefix.length == 0 || mEntryCount == 0)
+			return places;
+
+		ByteBuffer buffer = mBuffer.duplicate();
+		// lower bound of the prefix in the sorted entry table
+		int low = 0;
+		int high = mEntryCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareKey(buffer, mid, prefix, false) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		List<Integer> seen = new ArrayList<Integer>();
+		for (int i = low; i < mEntryCount && places.size() < max; i++) {
+			if (compareKey(buffer, i, prefix, true) != 0)
+				break;
+			int place = buffer.getInt(HEADER_BYTES + i * ENTRY_BYTES + 4);
+			if (seen.contains(Integer.valueOf(place)))
+				continue;
+			seen.add(Integer.valueOf(place));
+			places.add(readPlace(buffer, place));
+		}
+		return places;
+	}
+
+	/*
+	 * Compare the key of an entry with the query bytes. When prefixOnly is set
+	 * a key which starts with the query compares as equal.
+	 */
+	private static int compareKey(ByteBuffer buffer, int entry, byte[] query,
+			boolean prefixOnly) {
+		int keyOffset = buffer.getInt(HEADER_BYTES + entry * ENTRY_BYTES);
+		int length = buffer.getShort(keyOffset) & 0xffff;
+		int start = keyOffset + 2;
+		int n = Math.min(length, query.length);
+		for (int i = 0; i < n; i++) {
+			int a = buffer.get(start + i) & 0xff;
+			int b = query[i] & 0xff;
+			if (a != b)
+				return a - b;
+		}
+		if (prefixOnly && length >= query.length)
+			return 0;
+		return length - query.length;
+	}
+
+	private Place readPlace(ByteBuffer buffer, int place) {
+		int offset = mPlaceTable + place * PLACE_BYTES;
+		int labelOffset = buffer.getInt(offset);
+		double lon = buffer.getDouble(offset + 4);
+		double lat = buffer.getDouble(offset + 12);
+		int length = buffer.getShort(labelOffset) & 0xffff;
+		byte[] label = new byte[length];
+		for (int i = 0; i < length; i++) {
+			label[i] = buffer.get(labelOffset + 2 + i);
+		}
+		return new Place(string(label), lon, lat);
+	}
+
+	/**
+	 * Write an index for the given places, replacing any existing file.
+	 */
+	public static void write(List<Place> places, File file) throws IOException {
+		// collect keys, the full name and the name less its leading words
+		List<Object[]> entries = new ArrayList<Object[]>();
+		for (int p = 0; p < places.size(); p++) {
+			String key = GeocodeCache.normalize(places.get(p).name);
+			for (int word = 0; word <= MAX_WORD_SUFFIXES && key.length() > 0; word++) {
+				entries.add(new Object[] { utf8(key), Integer.valueOf(p) });
+				int space = key.indexOf(' ');
+				if (space < 0)
+					break;
+				key = key.substring(space + 1);
+			}
+		}
+		Collections.sort(entries, new Comparator<Object[]>() {
+
+			@Override
+			public int compare(Object[] lhs, Object[] rhs) {
+				byte[] a = (byte[]) lhs[0];
+				byte[] b = (byte[]) rhs[0];
+				int n = Math.min(a.length, b.length);
+				for (int i = 0; i < n; i++) {
+					int d = (a[i] & 0xff) - (b[i] & 0xff);
+					if (d != 0)
+						return d;
+				}
+				return a.length - b.length;
+			}
+		});
+
+		int stringsStart = HEADER_BYTES + entries.size() * ENTRY_BYTES
+				+ places.size() * PLACE_BYTES;
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			out.writeInt(places.size());
+
+			// keys are stored in entry order followed by the labels
+			int offset = stringsStart;
+			for (Object[] entry : entries) {
+				out.writeInt(offset);
+				out.writeInt(((Integer) entry[1]).intValue());
+				offset += 2 + ((byte[]) entry[0]).length;
+			}
+			List<byte[]> labels = new ArrayList<byte[]>(places.size());
+			for (Place place : places) {
+				byte[] label = utf8(place.name);
+				labels.add(label);
+				out.writeInt(offset);
+				out.writeDouble(place.longitude);
+				out.writeDouble(place.latitude);
+				offset += 2 + label.length;
+			}
+			for (Object[] entry : entries) {
+				writeString(out, (byte[]) entry[0]);
+			}
+			for (byte[] label : labels) {
+				writeString(out, label);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file))
+			throw new IOException("unable to replace " + file);
+	}
+
+	private static void writeString(DataOutputStream out, byte[] bytes)
+			throws IOException {
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			byte[] bytes = s.getBytes("UTF-8");
+			if (bytes.length > 0xffff) {
+				byte[] truncated = new byte[0xffff];
+				System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+				return truncated;
+			}
+			return bytes;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String string(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A named location in WGS84.
+	 */
+	public static class Place {
+		public final String name;
+		public final double longitude;
+		public final double latitude;
+
+		public Place(String name, double longitude, double latitude) {
+			this.name = name;
+			this.longitude = longitude;
+			this.latitude = latitude;
+		}
+	}
+}
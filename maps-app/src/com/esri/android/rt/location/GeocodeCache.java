@@ -0,0 +1,346 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.tasks.geocode.LocatorGeocodeResult;
+
+/**
+ * Two tier cache of geocode results. Recent lookups are held in a memory LRU
+ * and every lookup is also written to a small file in the application cache
+ * directory so repeated searches survive a restart without a network round
+ * trip.
+ *
+ * Keys combine the normalized query text with a quantized search center and
+ * distance, see {@link #createKey(String, Point, double, SpatialReference)}.
+ */
+public class GeocodeCache {
+
+	private static final String TAG = "GeocodeCache";
+
+	// file format version of the disk tier
+	private static final int DISK_VERSION = 1;
+	// default time to live for cached results, one week
+	public static final long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+	// number of queries held in memory
+	private static final int MEMORY_ENTRIES = 64;
+
+	private static GeocodeCache sInstance;
+
+	private final LruCache<String, Entry> mMemory;
+	private final File mDiskDir;
+	private long mTtl = DEFAULT_TTL;
+
+	private final AtomicInteger mHits = new AtomicInteger();
+	private final AtomicInteger mMisses = new AtomicInteger();
+
+	private GeocodeCache(File diskDir) {
+		mMemory = new LruCache<String, Entry>(MEMORY_ENTRIES);
+		mDiskDir = diskDir;
+		if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+			Log.w(TAG, "unable to create " + mDiskDir);
+		}
+	}
+
+	/**
+	 * @return the application wide cache, stored under the cache directory of
+	 *         the context
+	 */
+	public static synchronized GeocodeCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new GeocodeCache(new File(context.getApplicationContext()
+					.getCacheDir(), "geocode"));
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Build a cache key from a find request. The text is lower cased with
+	 * punctuation and repeated whitespace removed. The search distance is
+	 * rounded up to a power of two and the center is snapped to a grid of that
+	 * size, so searches from nearby map extents at similar zoom levels share
+	 * the same entry.
+	 *
+	 * @param text
+	 *            single line address
+	 * @param center
+	 *            search location, may be null
+	 * @param distance
+	 *            search distance in map units
+	 * @param sr
+	 *            spatial reference of center and results
+	 */
+	public static String createKey(String text, Point center, double distance,
+			SpatialReference sr) {
+		StringBuilder key = new StringBuilder(normalize(text));
+		key.append('|').append(sr == null ? 0 : sr.getID());
+		if (center != null && distance > 0) {
+			int bucket = (int) Math.ceil(Math.log(distance) / Math.log(2));
+			double cell = Math.pow(2, bucket);
+			key.append('|').append(bucket);
+			key.append('|').append((long) Math.floor(center.getX() / cell));
+			key.append('|').append((long) Math.floor(center.getY() / cell));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the query text lower cased, stripped of punctuation and with
+	 *         single spaces between words
+	 */
+	public static String normalize(String text) {
+		if (text == null)
+			return "";
+		StringBuilder sb = new StringBuilder(text.length());
+		boolean space = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			if (Character.isLetterOrDigit(c)) {
+				if (space && sb.length() > 0)
+					sb.append(' ');
+				sb.append(c);
+				space = false;
+			} else {
+				space = true;
+			}
+		}
+		return sb.toString();
+	}
+
+	public void setTimeToLive(long ttl) {
+		mTtl = ttl;
+	}
+
+	/**
+	 * Look up a previously stored result, checking memory first and then
+	 * disk. Performs file I/O so should not be called on the UI thread.
+	 *
+	 * @return the cached results or null if the key is unknown or expired
+	 */
+	public List<LocatorGeocodeResult> get(String key) {
+		long now = System.currentTimeMillis();
+		Entry entry = mMemory.get(key);
+		if (entry == null) {
+			entry = readEntry(key);
+			if (entry != null)
+				mMemory.put(key, entry);
+		}
+		if (entry == null || now - entry.created > mTtl) {
+			if (entry != null)
+				remove(key);
+			mMisses.incrementAndGet();
+			return null;
+		}
+		entry.hits.incrementAndGet();
+		mHits.incrementAndGet();
+		return entry.toResults();
+	}
+
+	/**
+	 * Store results for a key in both tiers. Empty results are not stored so
+	 * a failed lookup is retried the next time.
+	 */
+	public void put(String key, List<LocatorGeocodeResult> results) {
+		if (results == null || results.isEmpty())
+			return;
+		Entry entry = new Entry(key, System.currentTimeMillis(), results);
+		mMemory.put(key, entry);
+		writeEntry(entry);
+	}
+
+	public void remove(String key) {
+		mMemory.remove(key);
+		File file = fileFor(key);
+		if (file != null && file.exists() && !file.delete()) {
+			Log.w(TAG, "unable to delete " + file);
+		}
+	}
+
+	public int getHitCount() {
+		return mHits.get();
+	}
+
+	public int getMissCount() {
+		return mMisses.get();
+	}
+
+	/**
+	 * @return number of times the given key has been served from the cache
+	 *         since it was loaded into memory
+	 */
+	public int getHitCount(String key) {
+		Entry entry = mMemory.get(key);
+		return entry == null ? 0 : entry.hits.get();
+	}
+
+	private File fileFor(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format(Locale.US, "%02x", b));
+			}
+			return new File(mDiskDir, name.toString());
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private Entry readEntry(String key) {
+		File file = fileFor(key);
+		if (file == null || !file.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != DISK_VERSION)
+				return null;
+			// guard against digest collisions
+			if (!key.equals(in.readUTF()))
+				return null;
+			long created = in.readLong();
+			int count = in.readInt();
+			Entry entry = new Entry(key, created, count);
+			for (int i = 0; i < count; i++) {
+				entry.addresses[i] = in.readUTF();
+				entry.coords[i * 2] = in.readDouble();
+				entry.coords[i * 2 + 1] = in.readDouble();
+				entry.scores[i] = in.readDouble();
+			}
+			return entry;
+		} catch (IOException e) {
+			Log.w(TAG, "unable to read " + file, e);
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private void writeEntry(Entry entry) {
+		File file = fileFor(entry.key);
+		if (file == null)
+			return;
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			out.writeInt(DISK_VERSION);
+			out.writeUTF(entry.key);
+			out.writeLong(entry.created);
+			out.writeInt(entry.addresses.length);
+			for (int i = 0; i < entry.addresses.length; i++) {
+				out.writeUTF(entry.addresses[i]);
+				out.writeDouble(entry.coords[i * 2]);
+				out.writeDouble(entry.coords[i * 2 + 1]);
+				out.writeDouble(entry.scores[i]);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "unable to write " + file, e);
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	static void closeQuietly(java.io.Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/*
+	 * Compact copy of a geocode result list. Only the fields the app displays
+	 * are kept.
+	 */
+	private static class Entry {
+		final String key;
+		final long created;
+		final String[] addresses;
+		final double[] coords;
+		final double[] scores;
+		final AtomicInteger hits = new AtomicInteger();
+
+		Entry(String key, long created, int count) {
+			this.key = key;
+			this.created = created;
+			addresses = new String[count];
+			coords = new double[count * 2];
+			scores = new double[count];
+		}
+
+		Entry(String key, long created, List<LocatorGeocodeResult> results) {
+			this(key, created, results.size());
+			for (int i = 0; i < results.size(); i++) {
+				LocatorGeocodeResult result = results.get(i);
+				Point location = result.getLocation();
+				addresses[i] = result.getAddress() == null ? "" : result
+						.getAddress();
+				coords[i * 2] = location == null ? Double.NaN : location.getX();
+				coords[i * 2 + 1] = location == null ? Double.NaN : location
+						.getY();
+				scores[i] = result.getScore();
+			}
+		}
+
+		List<LocatorGeocodeResult> toResults() {
+			List<LocatorGeocodeResult> results = new ArrayList<LocatorGeocodeResult>(
+					addresses.length);
+			for (int i = 0; i < addresses.length; i++) {
+				LocatorGeocodeResult result = new LocatorGeocodeResult();
+				result.setAddress(addresses[i]);
+				if (!Double.isNaN(coords[i * 2]))
+					result.setLocation(new Point(coords[i * 2], coords[i * 2 + 1]));
+				result.setScore(scores[i]);
+				results.add(result);
+			}
+			return results;
+		}
+	}
+}
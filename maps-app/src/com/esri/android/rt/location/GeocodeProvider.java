@@ -0,0 +1,48 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.util.List;
+
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.tasks.geocode.LocatorFindParameters;
+import com.esri.core.tasks.geocode.LocatorGeocodeResult;
+
+/**
+ * Finds locations for a single line address, in the same way as
+ * {@link com.esri.core.tasks.geocode.Locator#find(LocatorFindParameters)}.
+ */
+public interface GeocodeProvider {
+
+	/**
+	 * @param params
+	 *            the address to find
+	 * @param outSR
+	 *            spatial reference of the returned locations, null for WGS84
+	 * @return matching locations, best match first
+	 */
+	public List<LocatorGeocodeResult> find(LocatorFindParameters params,
+			SpatialReference outSR) throws Exception;
+}
@@ -0,0 +1,228 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.util.Locale;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Requests location updates only as often as the app needs them. The update
+ * interval and minimum distance follow the device speed and whether a route
+ * is being navigated; in the background updates stop unless navigating or
+ * recording a track, when they continue at a low rate. Fixes are passed on to
+ * a listener.
+ *
+ * Must be used from the UI thread.
+ */
+public class LocationScheduler implements LocationListener {
+
+	private static final String TAG = "LocationScheduler";
+
+	// speed tiers in metres per second
+	private static final float WALKING_SPEED = 0.5f;
+	private static final float DRIVING_SPEED = 4f;
+	// weight of a new speed sample in the smoothed speed
+	private static final float SPEED_SMOOTHING = 0.3f;
+	// fix times kept to measure the fix rate
+	private static final int RATE_SAMPLES = 16;
+
+	private final LocationManager mLocationManager;
+	private final LocationListener mListener;
+
+	private boolean mStarted;
+	private boolean mForeground = true;
+	private boolean mNavigating;
+	private boolean mRecording;
+	private float mSpeed;
+	private Location mLast;
+
+	// current request, interval 0 when there is none
+	private String mProvider;
+	private long mInterval;
+	private float mDistance;
+
+	private final long[] mFixTimes = new long[RATE_SAMPLES];
+	private int mFixCount;
+
+	public LocationScheduler(Context context, LocationListener listener) {
+		mLocationManager = (LocationManager) context
+				.getSystemService(Context.LOCATION_SERVICE);
+		mListener = listener;
+	}
+
+	public void start() {
+		mStarted = true;
+		schedule();
+	}
+
+	public void stop() {
+		mStarted = false;
+		schedule();
+	}
+
+	/**
+	 * Call from onResume and onPause.
+	 */
+	public void setForeground(boolean foreground) {
+		mForeground = foreground;
+		schedule();
+	}
+
+	/**
+	 * Navigation needs frequent fixes and keeps updates running in the
+	 * background.
+	 */
+	public void setNavigating(boolean navigating) {
+		mNavigating = navigating;
+		schedule();
+	}
+
+	/**
+	 * A track being recorded keeps updates running in the background, at a
+	 * lower rate than navigation.
+	 */
+	public void setRecording(boolean recording) {
+		mRecording = recording;
+		schedule();
+	}
+
+	/**
+	 * @return fixes received per minute recently, 0 until there are two
+	 */
+	public double getFixRate() {
+		int count = Math.min(mFixCount, RATE_SAMPLES);
+		if (count < 2)
+			return 0;
+		long newest = mFixTimes[(mFixCount - 1) % RATE_SAMPLES];
+		long oldest = mFixTimes[(mFixCount - count) % RATE_SAMPLES];
+		if (newest <= oldest)
+			return 0;
+		return (count - 1) * 60000.0 / (newest - oldest);
+	}
+
+	/*
+	 * Request updates with the interval and distance for the current state,
+	 * only touching the location manager when they change.
+	 */
+	private void schedule() {
+		long interval = 0;
+		float distance = 0;
+		if (mStarted && mNavigating && !mForeground) {
+			interval = 10000;
+			distance = 50;
+		} else if (mStarted && mNavigating) {
+			if (mSpeed >= DRIVING_SPEED) {
+				interval = 1000;
+				distance = 0;
+			} else if (mSpeed >= WALKING_SPEED) {
+				interval = 2000;
+				distance = 3;
+			} else {
+				interval = 5000;
+				distance = 5;
+			}
+		} else if (mStarted && mRecording && !mForeground) {
+			interval = 30000;
+			distance = 25;
+		} else if (mStarted && mForeground) {
+			if (mSpeed >= WALKING_SPEED) {
+				interval = 5000;
+				distance = 10;
+			} else {
+				interval = 30000;
+				distance = 25;
+			}
+		}
+
+		String provider = LocationManager.GPS_PROVIDER;
+		if (!mLocationManager.isProviderEnabled(provider))
+			provider = LocationManager.NETWORK_PROVIDER;
+		if (interval == mInterval && distance == mDistance
+				&& (interval == 0 || provider.equals(mProvider)))
+			return;
+
+		mLocationManager.removeUpdates(this);
+		mInterval = interval;
+		mDistance = distance;
+		mProvider = provider;
+		if (interval > 0) {
+			try {
+				mLocationManager.requestLocationUpdates(provider, interval,
+						distance, this);
+			} catch (IllegalArgumentException e) {
+				// the provider doesn't exist on this device
+				Log.w(TAG, "unable to request " + provider + " updates", e);
+			}
+		}
+		Log.d(TAG, "interval " + interval + " ms, distance " + distance
+				+ " m, " + String.format(Locale.US, "%.1f", getFixRate())
+				+ " fixes/min");
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		mFixTimes[mFixCount % RATE_SAMPLES] = location.getTime();
+		mFixCount++;
+
+		float speed;
+		if (location.hasSpeed()) {
+			speed = location.getSpeed();
+		} else if (mLast != null && location.getTime() > mLast.getTime()) {
+			speed = mLast.distanceTo(location) * 1000f
+					/ (location.getTime() - mLast.getTime());
+		} else {
+			speed = mSpeed;
+		}
+		mSpeed += SPEED_SMOOTHING * (speed - mSpeed);
+		mLast = location;
+
+		mListener.onLocationChanged(location);
+		schedule();
+	}
+
+	@Override
+	public void onProviderDisabled(String provider) {
+		mListener.onProviderDisabled(provider);
+		// fall back to the other provider
+		schedule();
+	}
+
+	@Override
+	public void onProviderEnabled(String provider) {
+		mListener.onProviderEnabled(provider);
+		schedule();
+	}
+
+	@Override
+	public void onStatusChanged(String provider, int status, Bundle extras) {
+		mListener.onStatusChanged(provider, status, extras);
+	}
+}
@@ -0,0 +1,138 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.esri.android.rt.location.GazetteerIndex.Place;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.tasks.geocode.Locator;
+import com.esri.core.tasks.geocode.LocatorFindParameters;
+import com.esri.core.tasks.geocode.LocatorGeocodeResult;
+
+/**
+ * Answers a find from the on-device gazetteer and only asks the online
+ * locator when the gazetteer has no match within the search distance. Matches
+ * are ranked by distance from the search location, and no more are returned
+ * than the find asks for.
+ */
+public class OfflineFirstGeocoder implements GeocodeProvider {
+
+	// score reported for gazetteer matches, the same scale as the locator
+	private static final double OFFLINE_SCORE = 100;
+	// number of gazetteer matches returned when the find doesn't say
+	private static final int MAX_RESULTS = 5;
+	// gazetteer matches considered before filtering by distance
+	private static final int MAX_CANDIDATES = 200;
+
+	private volatile GazetteerIndex mIndex;
+	private final Locator mLocator;
+
+	public OfflineFirstGeocoder(Locator locator) {
+		mLocator = locator;
+	}
+
+	/**
+	 * Set or replace the gazetteer, e.g. once it has been built in the
+	 * background.
+	 */
+	public void setIndex(GazetteerIndex index) {
+		mIndex = index;
+	}
+
+	@Override
+	public List<LocatorGeocodeResult> find(LocatorFindParameters params,
+			SpatialReference outSR) throws Exception {
+		GazetteerIndex index = mIndex;
+		if (index != null) {
+			List<Place> places = index.find(params.getText(), MAX_CANDIDATES);
+			if (!places.isEmpty()) {
+				List<LocatorGeocodeResult> results = toResults(places, params,
+						outSR);
+				if (!results.isEmpty())
+					return results;
+			}
+		}
+		return mLocator.find(params);
+	}
+
+	/*
+	 * The places within the search distance, nearest first. The search
+	 * location is in the output spatial reference, as the app sets both to
+	 * the map's, and the distance in its units.
+	 */
+	private static List<LocatorGeocodeResult> toResults(List<Place> places,
+			LocatorFindParameters params, SpatialReference outSR) {
+		Point center = params.getLocation();
+		double distance = params.getDistance();
+		int max = params.getMaxLocations() > 0 ? params.getMaxLocations()
+				: MAX_RESULTS;
+
+		final double[] distances = new double[places.size()];
+		Point[] locations = new Point[places.size()];
+		Integer[] order = new Integer[places.size()];
+		int count = 0;
+		double[] xy = new double[2];
+		for (int i = 0; i < places.size(); i++) {
+			Place place = places.get(i);
+			WebMercator.project(place.longitude, place.latitude,
+					WebMercator.WGS84, outSR, xy);
+			locations[i] = new Point(xy[0], xy[1]);
+			if (center != null) {
+				distances[i] = Math.hypot(xy[0] - center.getX(), xy[1]
+						- center.getY());
+				if (distance > 0 && distances[i] > distance)
+					continue;
+			}
+			order[count++] = Integer.valueOf(i);
+		}
+		// nearest first, the index order of names breaks ties
+		Arrays.sort(order, 0, count, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				int byDistance = Double.compare(distances[lhs.intValue()],
+						distances[rhs.intValue()]);
+				return byDistance != 0 ? byDistance : lhs.compareTo(rhs);
+			}
+		});
+
+		List<LocatorGeocodeResult> results = new ArrayList<LocatorGeocodeResult>(
+				Math.min(count, max));
+		for (int i = 0; i < count && results.size() < max; i++) {
+			int place = order[i].intValue();
+			LocatorGeocodeResult result = new LocatorGeocodeResult();
+			result.setAddress(places.get(place).name);
+			result.setLocation(locations[place]);
+			result.setScore(OFFLINE_SCORE);
+			results.add(result);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,209 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.tasks.geocode.LocatorReverseGeocodeResult;
+
+/**
+ * Caches reverse geocode address fields by grid cell. The map is divided into
+ * square cells the size of the reverse geocode tolerance, a press anywhere in
+ * a cell that has been looked up before is answered from memory or disk.
+ * Concurrent lookups for the same cell share a single request.
+ */
+public class ReverseGeocodeCache {
+
+	private static final String TAG = "ReverseGeocodeCache";
+
+	// search tolerance of the reverse geocode and size of a cache cell, in
+	// map units
+	public static final double TOLERANCE = 50.0;
+	// addresses rarely change, keep them for a month
+	private static final long TTL = 30L * 24 * 60 * 60 * 1000;
+	private static final int MEMORY_ENTRIES = 128;
+	private static final int DISK_VERSION = 1;
+
+	private static ReverseGeocodeCache sInstance;
+
+	private final LruCache<String, Map<String, String>> mMemory;
+	private final ConcurrentHashMap<String, FutureTask<Map<String, String>>> mInFlight = new ConcurrentHashMap<String, FutureTask<Map<String, String>>>();
+	private final File mDiskDir;
+	private final ServiceRegistry mServices;
+
+	private ReverseGeocodeCache(Context context) {
+		mMemory = new LruCache<String, Map<String, String>>(MEMORY_ENTRIES);
+		mDiskDir = new File(context.getCacheDir(), "reverse");
+		if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+			Log.w(TAG, "unable to create " + mDiskDir);
+		}
+		mServices = ServiceRegistry.getInstance(context);
+	}
+
+	public static synchronized ReverseGeocodeCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ReverseGeocodeCache(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @return key of the grid cell containing the point
+	 */
+	static String cellKey(Point point, SpatialReference sr) {
+		long column = (long) Math.floor(point.getX() / TOLERANCE);
+		long row = (long) Math.floor(point.getY() / TOLERANCE);
+		return (sr == null ? 0 : sr.getID()) + "_" + column + "_" + row;
+	}
+
+	/**
+	 * Find the address fields of a point, from the cache when its cell has
+	 * been seen before. Performs network and file I/O so must not be called
+	 * on the UI thread.
+	 *
+	 * @return address fields or null if the point has no address
+	 */
+	public Map<String, String> lookup(final Point point,
+			final SpatialReference sr) throws Exception {
+		final String key = cellKey(point, sr);
+		Map<String, String> fields = mMemory.get(key);
+		if (fields != null)
+			return fields;
+
+		FutureTask<Map<String, String>> task = new FutureTask<Map<String, String>>(
+				new Callable<Map<String, String>>() {
+
+					@Override
+					public Map<String, String> call() throws Exception {
+						Map<String, String> fields = read(key);
+						if (fields == null) {
+							LocatorReverseGeocodeResult result = mServices
+									.getLocator().reverseGeocode(point,
+											TOLERANCE, sr, sr);
+							if (result == null
+									|| result.getAddressFields() == null)
+								return null;
+							fields = new HashMap<String, String>(result
+									.getAddressFields());
+							write(key, fields);
+						}
+						mMemory.put(key, fields);
+						return fields;
+					}
+				});
+		// join a lookup of the same cell if one is already running
+		FutureTask<Map<String, String>> running = mInFlight.putIfAbsent(key,
+				task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				mInFlight.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+	}
+
+	private File fileFor(String key) {
+		return new File(mDiskDir, key);
+	}
+
+	private Map<String, String> read(String key) {
+		File file = fileFor(key);
+		if (!file.exists())
+			return null;
+		if (System.currentTimeMillis() - file.lastModified() > TTL) {
+			file.delete();
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != DISK_VERSION)
+				return null;
+			int count = in.readInt();
+			Map<String, String> fields = new HashMap<String, String>(count);
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				String value = in.readBoolean() ? in.readUTF() : null;
+				fields.put(name, value);
+			}
+			return fields;
+		} catch (IOException e) {
+			Log.w(TAG, "unable to read " + file, e);
+			return null;
+		} finally {
+			GeocodeCache.closeQuietly(in);
+		}
+	}
+
+	private void write(String key, Map<String, String> fields) {
+		File file = fileFor(key);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			out.writeInt(DISK_VERSION);
+			out.writeInt(fields.size());
+			for (Entry<String, String> field : fields.entrySet()) {
+				out.writeUTF(field.getKey());
+				out.writeBoolean(field.getValue() != null);
+				if (field.getValue() != null)
+					out.writeUTF(field.getValue());
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "unable to write " + file, e);
+		} finally {
+			GeocodeCache.closeQuietly(out);
+		}
+	}
+}
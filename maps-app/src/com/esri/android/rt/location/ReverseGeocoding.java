@@ -33,11 +33,9 @@ import android.widget.Toast;
 import com.esri.android.map.MapView;
 import com.esri.core.geometry.Point;
 import com.esri.core.geometry.SpatialReference;
-import com.esri.core.tasks.geocode.Locator;
-import com.esri.core.tasks.geocode.LocatorReverseGeocodeResult;
 
 public class ReverseGeocoding extends
-		AsyncTask<Point, Void, LocatorReverseGeocodeResult> {
+		AsyncTask<Point, Void, Map<String, String>> {
 	private Activity currentActivity;
 	private MapView mapView;
 
@@ -47,18 +45,19 @@ public class ReverseGeocoding extends
 	}
 
 	@Override
-	protected LocatorReverseGeocodeResult doInBackground(Point... params) {
+	protected Map<String, String> doInBackground(Point... params) {
 		// create results object and set to null
-		LocatorReverseGeocodeResult result = null;
-		// set the geocode service
-		Locator locator = Locator.createOnlineLocator();
+		Map<String, String> result = null;
+		// presses near an earlier one are answered by the cache
+		ReverseGeocodeCache cache = ReverseGeocodeCache
+				.getInstance(currentActivity);
 		try {
 
 			// Attempt to reverse geocode the point.
 			// Our input and output spatial reference will be the same as the
 			// map.
 			SpatialReference mapRef = mapView.getSpatialReference();
-			result = locator.reverseGeocode(params[0], 50.0, mapRef, mapRef);
+			result = cache.lookup(params[0], mapRef);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -66,14 +65,14 @@ public class ReverseGeocoding extends
 		return result;
 	}
 
-	protected void onPostExecute(LocatorReverseGeocodeResult result) {
+	protected void onPostExecute(Map<String, String> result) {
 
 		String resultAddress;
 
 		// Construct a nicely formatted address from the results
 		StringBuilder address = new StringBuilder();
-		if (result != null && result.getAddressFields() != null) {
-			Map<String, String> addressFields = result.getAddressFields();
+		if (result != null) {
+			Map<String, String> addressFields = result;
 			address.append(String.format("%s\n%s, %s %s",
 					addressFields.get("Address"), addressFields.get("City"),
 					addressFields.get("Region"), addressFields.get("Postal")));
@@ -0,0 +1,221 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.arcgis.android.app.map.R;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * Persistent cache of solved routes. Routes are keyed by their stops, snapped
+ * to a grid of roughly 20 metres, together with the route service and output
+ * spatial reference. Entries older than the maximum age are discarded, entries
+ * older than the refresh age are still returned but flagged so the caller
+ * can solve again in the background.
+ */
+public class RouteCache {
+
+	private static final String TAG = "RouteCache";
+
+	// stop snapping grid in degrees, about 20 metres
+	private static final double STOP_GRID = 0.0002;
+	private static final int MEMORY_ENTRIES = 8;
+	private static final int DISK_VERSION = 1;
+
+	// default maximum age, one week
+	public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+	// default age after which a cached route is refreshed, one day
+	public static final long DEFAULT_REFRESH_AGE = 24L * 60 * 60 * 1000;
+
+	private static RouteCache sInstance;
+
+	private final LruCache<String, CompactRoute> mMemory;
+	private final File mDiskDir;
+	private final String mServiceUrl;
+	private long mMaxAge = DEFAULT_MAX_AGE;
+	private long mRefreshAge = DEFAULT_REFRESH_AGE;
+
+	private RouteCache(Context context) {
+		mMemory = new LruCache<String, CompactRoute>(MEMORY_ENTRIES);
+		mDiskDir = new File(context.getCacheDir(), "routes");
+		if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+			Log.w(TAG, "unable to create " + mDiskDir);
+		}
+		mServiceUrl = context.getString(R.string.routingservice_url);
+	}
+
+	public static synchronized RouteCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new RouteCache(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @param maxAge
+	 *            age in milliseconds after which a route is solved again
+	 */
+	public void setMaxAge(long maxAge) {
+		mMaxAge = maxAge;
+	}
+
+	/**
+	 * @param refreshAge
+	 *            age in milliseconds after which a cached route should be
+	 *            refreshed in the background
+	 */
+	public void setRefreshAge(long refreshAge) {
+		mRefreshAge = refreshAge;
+	}
+
+	/**
+	 * @param stops
+	 *            stop locations in WGS84, in route order
+	 * @param outSR
+	 *            spatial reference the route is returned in
+	 */
+	public String createKey(Point[] stops, SpatialReference outSR) {
+		StringBuilder key = new StringBuilder(mServiceUrl);
+		key.append('|').append(outSR == null ? 0 : outSR.getID());
+		for (Point stop : stops) {
+			key.append('|').append(Math.round(stop.getX() / STOP_GRID));
+			key.append(',').append(Math.round(stop.getY() / STOP_GRID));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Performs file I/O so should not be called on the UI thread.
+	 *
+	 * @return the cached route or null if it is unknown or too old
+	 */
+	public CompactRoute get(String key) {
+		CompactRoute route = mMemory.get(key);
+		if (route == null) {
+			route = read(key);
+			if (route != null)
+				mMemory.put(key, route);
+		}
+		if (route != null
+				&& System.currentTimeMillis() - route.getCreated() > mMaxAge) {
+			remove(key);
+			return null;
+		}
+		if (route != null) {
+			route.mKey = key;
+			route.mFromCache = true;
+		}
+		return route;
+	}
+
+	public void put(String key, CompactRoute route) {
+		route.mKey = key;
+		mMemory.put(key, route);
+		write(key, route);
+	}
+
+	public void remove(String key) {
+		mMemory.remove(key);
+		File file = fileFor(key);
+		if (file != null && file.exists() && !file.delete()) {
+			Log.w(TAG, "unable to delete " + file);
+		}
+	}
+
+	/**
+	 * @return true if a cached route is old enough to be solved again
+	 */
+	public boolean needsRefresh(CompactRoute route) {
+		return route.isFromCache()
+				&& System.currentTimeMillis() - route.getCreated() > mRefreshAge;
+	}
+
+	private File fileFor(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format(Locale.US, "%02x", b));
+			}
+			return new File(mDiskDir, name.toString());
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private CompactRoute read(String key) {
+		File file = fileFor(key);
+		if (file == null || !file.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != DISK_VERSION || !key.equals(in.readUTF()))
+				return null;
+			return CompactRoute.readFrom(in);
+		} catch (IOException e) {
+			Log.w(TAG, "unable to read " + file, e);
+			return null;
+		} finally {
+			GeocodeCache.closeQuietly(in);
+		}
+	}
+
+	private void write(String key, CompactRoute route) {
+		File file = fileFor(key);
+		if (file == null)
+			return;
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			out.writeInt(DISK_VERSION);
+			out.writeUTF(key);
+			route.writeTo(out);
+		} catch (IOException e) {
+			Log.w(TAG, "unable to write " + file, e);
+		} finally {
+			GeocodeCache.closeQuietly(out);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.map.Graphic;
+import com.esri.core.tasks.geocode.LocatorFindParameters;
+import com.esri.core.tasks.geocode.LocatorGeocodeResult;
+import com.esri.core.tasks.na.NAFeaturesAsFeature;
+import com.esri.core.tasks.na.RouteParameters;
+import com.esri.core.tasks.na.RouteResult;
+import com.esri.core.tasks.na.StopGraphic;
+
+/**
+ * Solves a route in two stages. Every stop is geocoded concurrently on a
+ * small shared pool and the solve starts as soon as all stops are known. If
+ * any stop can't be found the remaining lookups are cancelled and the route
+ * fails straight away. Intermediate stops are put in a short visiting order
+ * by {@link StopSequencer} so any number of stops takes one solve. Routes
+ * between stops which have been solved before are returned from the
+ * {@link RouteCache}.
+ */
+public class RoutePipeline {
+
+	// stop text which is replaced by the device location
+	public static final String MY_LOCATION = "My Location";
+
+	// maximum number of concurrent geocode requests
+	private static final int GEOCODE_THREADS = 4;
+
+	private static ExecutorService sGeocodeExecutor;
+
+	private final ServiceRegistry mServices;
+	private final GeocodeCache mCache;
+	private final RouteCache mRouteCache;
+	private final Timings mTimings = new Timings();
+	private boolean mOptimizeOrder = true;
+
+	public RoutePipeline(ServiceRegistry services, GeocodeCache cache,
+			RouteCache routeCache) {
+		mServices = services;
+		mCache = cache;
+		mRouteCache = routeCache;
+	}
+
+	/**
+	 * @param optimizeOrder
+	 *            reorder the stops between the start and destination before
+	 *            solving, on by default
+	 */
+	public void setOptimizeOrder(boolean optimizeOrder) {
+		mOptimizeOrder = optimizeOrder;
+	}
+
+	private static synchronized ExecutorService getGeocodeExecutor() {
+		if (sGeocodeExecutor == null) {
+			sGeocodeExecutor = Executors.newFixedThreadPool(GEOCODE_THREADS,
+					new ThreadFactory() {
+						private final AtomicInteger mCount = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "RouteGeocode #"
+									+ mCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return sGeocodeExecutor;
+	}
+
+	/**
+	 * Geocode the stops and solve a route through them from the first to the
+	 * last stop.
+	 *
+	 * @param stops
+	 *            find parameters for each stop, at least two
+	 * @param myLocation
+	 *            device location in WGS84, used for stops named
+	 *            {@link #MY_LOCATION}
+	 * @param outSR
+	 *            spatial reference of the returned route
+	 */
+	public CompactRoute solve(List<LocatorFindParameters> stops,
+			Point myLocation, SpatialReference outSR) throws Exception {
+		long start = SystemClock.elapsedRealtime();
+		Point[] points = geocodeStops(stops, myLocation);
+		long geocoded = SystemClock.elapsedRealtime();
+		mTimings.geocodeMillis = geocoded - start;
+		if (mOptimizeOrder)
+			points = StopSequencer.apply(points, StopSequencer.order(points));
+
+		CompactRoute route = mRouteCache.get(mRouteCache.createKey(points,
+				outSR));
+		mTimings.fromCache = route != null;
+		if (route == null)
+			route = solveAndCache(points, outSR);
+		mTimings.solveMillis = SystemClock.elapsedRealtime() - geocoded;
+		mTimings.totalMillis = SystemClock.elapsedRealtime() - start;
+		return route;
+	}
+
+	/**
+	 * Solve a route through stops which have already been located and store
+	 * it in the route cache, replacing any earlier route for the same stops.
+	 *
+	 * @return the route or null if the service found none
+	 */
+	public CompactRoute solveAndCache(Point[] points, SpatialReference outSR)
+			throws Exception {
+		RouteResult result = solve(points, outSR);
+		if (result == null || result.getRoutes() == null
+				|| result.getRoutes().isEmpty())
+			return null;
+		CompactRoute route = CompactRoute.fromRoute(result.getRoutes().get(0),
+				points);
+		mRouteCache.put(mRouteCache.createKey(points, outSR), route);
+		return route;
+	}
+
+	/**
+	 * Solve a route through stops which have already been located.
+	 */
+	public RouteResult solve(Point[] points, SpatialReference outSR)
+			throws Exception {
+		RouteParameters routeParams = mServices.createRouteParameters();
+		Graphic[] stopGraphics = new Graphic[points.length];
+		for (int i = 0; i < points.length; i++) {
+			stopGraphics[i] = new StopGraphic(points[i]);
+		}
+		NAFeaturesAsFeature routeFAF = new NAFeaturesAsFeature();
+		routeFAF.setFeatures(stopGraphics);
+		routeFAF.setCompressedRequest(true);
+		routeParams.setStops(routeFAF);
+		routeParams.setOutSpatialReference(outSR);
+		return mServices.getRouteTask().solve(routeParams);
+	}
+
+	/**
+	 * Locate every stop concurrently.
+	 *
+	 * @return the stop locations in the order of the find parameters
+	 * @throws Exception
+	 *             from the first stop which could not be located
+	 */
+	public Point[] geocodeStops(List<LocatorFindParameters> stops,
+			Point myLocation) throws Exception {
+		Point[] points = new Point[stops.size()];
+		CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(
+				getGeocodeExecutor());
+		List<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < stops.size(); i++) {
+			LocatorFindParameters stop = stops.get(i);
+			if (MY_LOCATION.equals(stop.getText())) {
+				if (myLocation == null)
+					throw new Exception("Device location is not available");
+				points[i] = myLocation;
+			} else {
+				pending.add(completion.submit(new StopGeocoder(stop, points, i)));
+			}
+		}
+
+		try {
+			for (int i = 0; i < pending.size(); i++) {
+				completion.take().get();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		} finally {
+			// fail fast, nothing left to wait for
+			for (Future<Integer> future : pending) {
+				future.cancel(true);
+			}
+		}
+		return points;
+	}
+
+	/**
+	 * @return how long each stage of the last solve took
+	 */
+	public Timings getTimings() {
+		return mTimings;
+	}
+
+	/*
+	 * Geocodes a single stop into its slot of the result array.
+	 */
+	private class StopGeocoder implements Callable<Integer> {
+		private final LocatorFindParameters mParams;
+		private final Point[] mPoints;
+		private final int mIndex;
+
+		StopGeocoder(LocatorFindParameters params, Point[] points, int index) {
+			mParams = params;
+			mPoints = points;
+			mIndex = index;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			String key = GeocodeCache.createKey(mParams.getText(), null, 0,
+					null);
+			List<LocatorGeocodeResult> results = mCache.get(key);
+			if (results == null) {
+				results = mServices.getGeocodeProvider().find(mParams, null);
+				mCache.put(key, results);
+			}
+			if (results == null || results.isEmpty()
+					|| results.get(0).getLocation() == null)
+				throw new Exception("No location found for "
+						+ mParams.getText());
+			synchronized (mPoints) {
+				mPoints[mIndex] = results.get(0).getLocation();
+			}
+			return Integer.valueOf(mIndex);
+		}
+	}
+
+	/**
+	 * Elapsed time of each stage in milliseconds.
+	 */
+	public static class Timings {
+		public long geocodeMillis;
+		public long solveMillis;
+		public long totalMillis;
+		// route was served from the route cache
+		public boolean fromCache;
+
+		@Override
+		public String toString() {
+			return "geocode " + geocodeMillis + " ms, solve " + solveMillis
+					+ (fromCache ? " ms (cached)" : " ms") + ", total "
+					+ totalMillis + " ms";
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.esri.core.geometry.Polyline;
+
+/**
+ * Douglas-Peucker simplifications of a route at a series of doubling
+ * tolerances. The map picks the coarsest level whose tolerance is below a
+ * pixel at the current resolution so the number of vertices drawn stays
+ * about the same at every zoom.
+ *
+ * Building the pyramid is linear in the number of route vertices per level
+ * and should be done off the UI thread.
+ */
+public class RoutePyramid {
+
+	// a level is good enough while its tolerance is under this many pixels
+	private static final double PIXEL_TOLERANCE = 0.5;
+	// stop adding levels once a level is this small
+	private static final int MIN_VERTICES = 32;
+	private static final int MAX_LEVELS = 16;
+
+	// tolerance in map units of each level, level 0 is the full route
+	private final double[] mTolerances;
+	private final double[][] mCoords;
+	private final int[][] mPathStarts;
+	private final Polyline[] mPolylines;
+
+	private RoutePyramid(List<double[]> coords, List<int[]> pathStarts,
+			List<Double> tolerances) {
+		int levels = coords.size();
+		mTolerances = new double[levels];
+		mCoords = new double[levels][];
+		mPathStarts = new int[levels][];
+		mPolylines = new Polyline[levels];
+		for (int i = 0; i < levels; i++) {
+			mTolerances[i] = tolerances.get(i).doubleValue();
+			mCoords[i] = coords.get(i);
+			mPathStarts[i] = pathStarts.get(i);
+		}
+	}
+
+	/**
+	 * Simplify the route at doubling tolerances, starting from the given
+	 * finest tolerance, until the route is reduced to a handful of vertices.
+	 *
+	 * @param finestTolerance
+	 *            tolerance of level 1 in map units, e.g. the map resolution at
+	 *            the most detailed zoom level
+	 */
+	public static RoutePyramid build(CompactRoute route, double finestTolerance) {
+		List<double[]> coords = new ArrayList<double[]>();
+		List<int[]> pathStarts = new ArrayList<int[]>();
+		List<Double> tolerances = new ArrayList<Double>();
+		coords.add(route.mCoords);
+		pathStarts.add(route.mPathStarts);
+		tolerances.add(Double.valueOf(0));
+
+		double tolerance = finestTolerance > 0 ? finestTolerance : 1;
+		double[] current = route.mCoords;
+		int[] currentStarts = route.mPathStarts;
+		while (current.length / 2 > MIN_VERTICES
+				&& coords.size() < MAX_LEVELS) {
+			int[] starts = new int[currentStarts.length];
+			double[] simplified = simplify(current, currentStarts, tolerance,
+					starts);
+			// each level simplifies the previous one, the error stays within
+			// the sum of the tolerances which is under twice the last one
+			if (simplified.length < current.length) {
+				coords.add(simplified);
+				pathStarts.add(starts);
+				tolerances.add(Double.valueOf(tolerance * 2));
+				current = simplified;
+				currentStarts = starts;
+			}
+			tolerance *= 2;
+		}
+		return new RoutePyramid(coords, pathStarts, tolerances);
+	}
+
+	public int getLevelCount() {
+		return mCoords.length;
+	}
+
+	public int getVertexCount(int level) {
+		return mCoords[level].length / 2;
+	}
+
+	/**
+	 * @param resolution
+	 *            map units per pixel
+	 * @return the coarsest level which still looks exact at the resolution
+	 */
+	public int levelFor(double resolution) {
+		double limit = resolution * PIXEL_TOLERANCE;
+		int level = 0;
+		for (int i = 1; i < mTolerances.length; i++) {
+			if (mTolerances[i] <= limit)
+				level = i;
+		}
+		return level;
+	}
+
+	/**
+	 * @return the route geometry of a level, created once and reused
+	 */
+	public synchronized Polyline getPolyline(int level) {
+		if (mPolylines[level] == null) {
+			mPolylines[level] = toPolyline(mCoords[level], mPathStarts[level]);
+		}
+		return mPolylines[level];
+	}
+
+	private static Polyline toPolyline(double[] coords, int[] pathStarts) {
+		Polyline line = new Polyline();
+		int count = coords.length / 2;
+		for (int path = 0; path < pathStarts.length; path++) {
+			int start = pathStarts[path];
+			int end = path + 1 < pathStarts.length ? pathStarts[path + 1]
+					: count;
+			for (int i = start; i < end; i++) {
+				if (i == start)
+					line.startPath(coords[i * 2], coords[i * 2 + 1]);
+				else
+					line.lineTo(coords[i * 2], coords[i * 2 + 1]);
+			}
+		}
+		return line;
+	}
+
+	/*
+	 * Douglas-Peucker simplification of every path, iterative so long routes
+	 * can't overflow the stack. Writes the start vertex of each simplified
+	 * path into outStarts.
+	 */
+	static double[] simplify(double[] coords, int[] pathStarts,
+			double tolerance, int[] outStarts) {
+		int count = coords.length / 2;
+		boolean[] keep = new boolean[count];
+		int[] stack = new int[64];
+		double toleranceSq = tolerance * tolerance;
+		for (int path = 0; path < pathStarts.length; path++) {
+			int first = pathStarts[path];
+			int last = (path + 1 < pathStarts.length ? pathStarts[path + 1]
+					: count) - 1;
+			if (last < first)
+				continue;
+			keep[first] = true;
+			keep[last] = true;
+			int top = 0;
+			stack[top++] = first;
+			stack[top++] = last;
+			while (top > 0) {
+				int end = stack[--top];
+				int start = stack[--top];
+				double maxSq = 0;
+				int index = -1;
+				for (int i = start + 1; i < end; i++) {
+					double d = segmentDistanceSq(coords, i, start, end);
+					if (d > maxSq) {
+						maxSq = d;
+						index = i;
+					}
+				}
+				if (index >= 0 && maxSq > toleranceSq) {
+					keep[index] = true;
+					if (top + 4 > stack.length) {
+						int[] grown = new int[stack.length * 2];
+						System.arraycopy(stack, 0, grown, 0, top);
+						stack = grown;
+					}
+					stack[top++] = start;
+					stack[top++] = index;
+					stack[top++] = index;
+					stack[top++] = end;
+				}
+			}
+		}
+
+		int kept = 0;
+		for (boolean k : keep) {
+			if (k)
+				kept++;
+		}
+		double[] simplified = new double[kept * 2];
+		int n = 0;
+		int path = 0;
+		for (int i = 0; i < count; i++) {
+			while (path < pathStarts.length && pathStarts[path] == i) {
+				outStarts[path++] = n;
+			}
+			if (keep[i]) {
+				simplified[n * 2] = coords[i * 2];
+				simplified[n * 2 + 1] = coords[i * 2 + 1];
+				n++;
+			}
+		}
+		return simplified;
+	}
+
+	/*
+	 * Squared distance from vertex p to the segment between vertices a and b.
+	 */
+	private static double segmentDistanceSq(double[] coords, int p, int a,
+			int b) {
+		double px = coords[p * 2];
+		double py = coords[p * 2 + 1];
+		double ax = coords[a * 2];
+		double ay = coords[a * 2 + 1];
+		double dx = coords[b * 2] - ax;
+		double dy = coords[b * 2 + 1] - ay;
+		double lengthSq = dx * dx + dy * dy;
+		double t = lengthSq == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy)
+				/ lengthSq;
+		if (t < 0)
+			t = 0;
+		else if (t > 1)
+			t = 1;
+		double x = ax + t * dx - px;
+		double y = ay + t * dy - py;
+		return x * x + y * y;
+	}
+}
@@ -0,0 +1,361 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+/**
+ * Follows the device along a route. Every fix is snapped to the closest route
+ * segment using a uniform grid over the segments, and the device is judged off
+ * route once several fixes in a row are too far from it. It only comes back
+ * on route once a fix is well within the route again so a fix wandering
+ * around the limit doesn't toggle the state.
+ *
+ * Snapping doesn't allocate so it can be called for every fix. All distances
+ * are in map units of the route unless named in metres.
+ */
+public class RouteTracker {
+
+	// a fix further than this from the route counts towards going off route
+	private static final double OFF_ROUTE_METRES = 50;
+	// a fix closer than this puts an off route device back on the route
+	private static final double ON_ROUTE_METRES = 25;
+	// poor fixes are given at most this much extra room
+	private static final double MAX_ACCURACY_METRES = 100;
+	// consecutive distant fixes before the device is off route
+	private static final int OFF_ROUTE_FIXES = 3;
+	// the grid never has more cells than this
+	private static final int MAX_CELLS = 1 << 16;
+
+	private final double[] mCoords;
+	// route distance at each vertex
+	private final double[] mMeasures;
+	// route distance of each stop
+	private final double[] mStopMeasures;
+	private final double mUnitsPerMetre;
+	// segments snapped to must be within this distance of a fix
+	private final double mSearchRadius;
+
+	// segment grid, the segments of cell c are
+	// mCellSegments[mCellStarts[c]..mCellStarts[c + 1]), a segment is
+	// identified by its first vertex
+	private final double mOriginX;
+	private final double mOriginY;
+	private final double mCellSize;
+	private final int mColumns;
+	private final int mRows;
+	private final int[] mCellStarts;
+	private final int[] mCellSegments;
+
+	// result of the last fix
+	private double mSnappedX;
+	private double mSnappedY;
+	private double mDistance;
+	private double mMeasure;
+	private int mSegment = -1;
+	private boolean mOffRoute;
+	private int mOffRouteCount;
+
+	/**
+	 * Index a route for tracking.
+	 *
+	 * @param route
+	 *            the route to follow
+	 * @param stops
+	 *            stop locations in the route's spatial reference as x,y pairs,
+	 *            in route order
+	 * @param metresPerUnit
+	 *            length of a map unit along the route, see
+	 *            {@link #metresPerUnit(int, double)}
+	 */
+	public RouteTracker(CompactRoute route, double[] stops, double metresPerUnit) {
+		mCoords = route.mCoords;
+		mUnitsPerMetre = 1 / metresPerUnit;
+		mSearchRadius = 2 * (OFF_ROUTE_METRES + MAX_ACCURACY_METRES)
+				* mUnitsPerMetre;
+
+		int count = mCoords.length / 2;
+		boolean[] segment = new boolean[count];
+		int path = 1;
+		for (int i = 0; i < count - 1; i++) {
+			// no segment joins the last vertex of a path to the next path
+			if (path < route.mPathStarts.length
+					&& route.mPathStarts[path] == i + 1) {
+				path++;
+			} else {
+				segment[i] = true;
+			}
+		}
+
+		mMeasures = new double[count];
+		for (int i = 1; i < count; i++) {
+			mMeasures[i] = mMeasures[i - 1];
+			if (segment[i - 1])
+				mMeasures[i] += Math.hypot(mCoords[i * 2] - mCoords[i * 2 - 2],
+						mCoords[i * 2 + 1] - mCoords[i * 2 - 1]);
+		}
+
+		double[] env = route.mEnvelope;
+		mOriginX = env[0] - mSearchRadius;
+		mOriginY = env[1] - mSearchRadius;
+		double width = env[2] - env[0] + 2 * mSearchRadius;
+		double height = env[3] - env[1] + 2 * mSearchRadius;
+		double cellSize = mSearchRadius;
+		while ((Math.floor(width / cellSize) + 1)
+				* (Math.floor(height / cellSize) + 1) > MAX_CELLS) {
+			cellSize *= 2;
+		}
+		mCellSize = cellSize;
+		mColumns = (int) (width / cellSize) + 1;
+		mRows = (int) (height / cellSize) + 1;
+
+		// count the segments of each cell, then fill them in
+		mCellStarts = new int[mColumns * mRows + 1];
+		for (int i = 0; i < count - 1; i++) {
+			if (segment[i])
+				addSegment(i, null, null);
+		}
+		for (int c = 0; c < mColumns * mRows; c++) {
+			mCellStarts[c + 1] += mCellStarts[c];
+		}
+		mCellSegments = new int[mCellStarts[mColumns * mRows]];
+		int[] filled = new int[mColumns * mRows];
+		for (int i = 0; i < count - 1; i++) {
+			if (segment[i])
+				addSegment(i, mCellSegments, filled);
+		}
+
+		mStopMeasures = new double[stops.length / 2];
+		for (int i = 0; i < mStopMeasures.length; i++) {
+			snap(stops[i * 2], stops[i * 2 + 1], Double.MAX_VALUE);
+			mStopMeasures[i] = mMeasure;
+		}
+		mSegment = -1;
+		mMeasure = 0;
+	}
+
+	/*
+	 * Count a segment in the cells its bounding box covers, or store it there
+	 * once the cells have been counted.
+	 */
+	private void addSegment(int i, int[] cells, int[] filled) {
+		int c0 = column(Math.min(mCoords[i * 2], mCoords[i * 2 + 2]));
+		int c1 = column(Math.max(mCoords[i * 2], mCoords[i * 2 + 2]));
+		int r0 = row(Math.min(mCoords[i * 2 + 1], mCoords[i * 2 + 3]));
+		int r1 = row(Math.max(mCoords[i * 2 + 1], mCoords[i * 2 + 3]));
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				int cell = r * mColumns + c;
+				if (cells == null)
+					mCellStarts[cell + 1]++;
+				else
+					cells[mCellStarts[cell] + filled[cell]++] = i;
+			}
+		}
+	}
+
+	/**
+	 * @param wkid
+	 *            spatial reference of the map
+	 * @param y
+	 *            a y coordinate near the route
+	 * @return approximate length in metres of a map unit near y
+	 */
+	public static double metresPerUnit(int wkid, double y) {
+		switch (wkid) {
+		case 4326:
+			return 111319.49;
+		case 102100:
+		case 102113:
+		case 3857:
+			// web mercator stretches by 1 / cos(latitude)
+			return Math.cos(Math.atan(Math.sinh(y / 6378137.0)));
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Snap a fix to the route and update the off route state.
+	 *
+	 * @param x
+	 *            fix location in the route's spatial reference
+	 * @param y
+	 *            fix location in the route's spatial reference
+	 * @param accuracy
+	 *            fix accuracy in metres, or 0 if unknown
+	 * @return true when this fix takes the device off the route, in which case
+	 *         the route should be solved again from the device location
+	 */
+	public boolean update(double x, double y, double accuracy) {
+		snap(x, y, mSearchRadius);
+
+		double extra = Math.min(Math.max(accuracy, 0), MAX_ACCURACY_METRES);
+		if (mOffRoute) {
+			if (mDistance < (ON_ROUTE_METRES + extra) * mUnitsPerMetre) {
+				mOffRoute = false;
+				mOffRouteCount = 0;
+			}
+			return false;
+		}
+		if (mDistance > (OFF_ROUTE_METRES + extra) * mUnitsPerMetre) {
+			if (++mOffRouteCount >= OFF_ROUTE_FIXES) {
+				mOffRoute = true;
+				return true;
+			}
+		} else {
+			mOffRouteCount = 0;
+		}
+		return false;
+	}
+
+	/*
+	 * Find the closest segment within radius of the point. Leaves the previous
+	 * snapped location in place and sets the distance to infinity if there is
+	 * none.
+	 */
+	private void snap(double x, double y, double radius) {
+		int c0 = column(x - radius);
+		int c1 = column(x + radius);
+		int r0 = row(y - radius);
+		int r1 = row(y + radius);
+		double bestSq = radius == Double.MAX_VALUE ? Double.MAX_VALUE : radius
+				* radius;
+		int best = -1;
+		double bestT = 0;
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				int cell = r * mColumns + c;
+				for (int k = mCellStarts[cell]; k < mCellStarts[cell + 1]; k++) {
+					int i = mCellSegments[k];
+					double ax = mCoords[i * 2];
+					double ay = mCoords[i * 2 + 1];
+					double dx = mCoords[i * 2 + 2] - ax;
+					double dy = mCoords[i * 2 + 3] - ay;
+					double lengthSq = dx * dx + dy * dy;
+					double t = lengthSq == 0 ? 0 : ((x - ax) * dx + (y - ay)
+							* dy)
+							/ lengthSq;
+					if (t < 0)
+						t = 0;
+					else if (t > 1)
+						t = 1;
+					double ex = ax + t * dx - x;
+					double ey = ay + t * dy - y;
+					double dSq = ex * ex + ey * ey;
+					// prefer the earlier segment on ties, a segment in
+					// several cells is simply measured again
+					if (dSq < bestSq || (dSq == bestSq && i < best)) {
+						bestSq = dSq;
+						best = i;
+						bestT = t;
+					}
+				}
+			}
+		}
+		if (best < 0) {
+			mDistance = Double.POSITIVE_INFINITY;
+			return;
+		}
+		double ax = mCoords[best * 2];
+		double ay = mCoords[best * 2 + 1];
+		mSnappedX = ax + bestT * (mCoords[best * 2 + 2] - ax);
+		mSnappedY = ay + bestT * (mCoords[best * 2 + 3] - ay);
+		mDistance = Math.sqrt(bestSq);
+		mMeasure = mMeasures[best] + bestT
+				* (mMeasures[best + 1] - mMeasures[best]);
+		mSegment = best;
+	}
+
+	private int column(double x) {
+		int c = (int) Math.floor((x - mOriginX) / mCellSize);
+		return c < 0 ? 0 : c >= mColumns ? mColumns - 1 : c;
+	}
+
+	private int row(double y) {
+		int r = (int) Math.floor((y - mOriginY) / mCellSize);
+		return r < 0 ? 0 : r >= mRows ? mRows - 1 : r;
+	}
+
+	public double getSnappedX() {
+		return mSnappedX;
+	}
+
+	public double getSnappedY() {
+		return mSnappedY;
+	}
+
+	/**
+	 * @return true once a fix has been snapped to the route
+	 */
+	public boolean hasSnapped() {
+		return mSegment >= 0;
+	}
+
+	/**
+	 * @return distance of the last fix from the route, infinite if it wasn't
+	 *         near the route at all
+	 */
+	public double getDistanceFromRoute() {
+		return mDistance;
+	}
+
+	/**
+	 * @return route distance from the start to the last snapped location
+	 */
+	public double getMeasure() {
+		return mMeasure;
+	}
+
+	/**
+	 * @return remaining route distance from the last snapped location
+	 */
+	public double getRemaining() {
+		return mMeasures[mMeasures.length - 1] - mMeasure;
+	}
+
+	public boolean isOffRoute() {
+		return mOffRoute;
+	}
+
+	/**
+	 * Forget that the device went off route, e.g. after a reroute failed, so
+	 * the next off route fixes ask for a reroute again.
+	 */
+	public void resetOffRoute() {
+		mOffRoute = false;
+		mOffRouteCount = 0;
+	}
+
+	/**
+	 * @return index of the first stop not yet passed, the stops from here on
+	 *         are what a reroute has to visit
+	 */
+	public int getNextStop() {
+		for (int i = 0; i < mStopMeasures.length; i++) {
+			if (mStopMeasures[i] > mMeasure)
+				return i;
+		}
+		return mStopMeasures.length - 1;
+	}
+}
@@ -0,0 +1,220 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import com.arcgis.android.app.map.R;
+import com.esri.core.tasks.geocode.Locator;
+import com.esri.core.tasks.na.RouteParameters;
+import com.esri.core.tasks.na.RouteTask;
+
+/**
+ * Holds the online geocode and routing clients shared by the app. The clients
+ * are created once, can be warmed on a background thread at startup and are
+ * safe to use from any thread since each request is independent.
+ *
+ * The default route parameters are retrieved from the route service a single
+ * time and kept as a template; {@link #createRouteParameters()} hands out a
+ * field by field copy of the template so a solve doesn't need a metadata round
+ * trip.
+ */
+public class ServiceRegistry {
+
+	private static final String TAG = "ServiceRegistry";
+
+	private static ServiceRegistry sInstance;
+
+	private final Context mContext;
+	private final String mRouteServiceUrl;
+
+	private volatile Locator mLocator;
+	private volatile OfflineFirstGeocoder mGeocoder;
+	private volatile RouteTask mRouteTask;
+	// default route parameters as retrieved from the service
+	private RouteParameters mRouteTemplate;
+	// instance fields of the template's class and its superclasses
+	private List<Field> mRouteTemplateFields;
+
+	private ServiceRegistry(Context context) {
+		mContext = context;
+		mRouteServiceUrl = context.getString(R.string.routingservice_url);
+	}
+
+	public static synchronized ServiceRegistry getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ServiceRegistry(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Create the clients, open the offline gazetteer and fetch the route
+	 * template on a background thread so the first search or route doesn't
+	 * pay for it.
+	 */
+	public void warmUp() {
+		Thread warmer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				getLocator();
+				getGeocodeProvider().setIndex(
+						GazetteerBuilder.openOrBuild(mContext));
+				try {
+					getRouteTemplate();
+				} catch (Exception e) {
+					// retried on the first solve
+					Log.w(TAG, "unable to warm route task", e);
+				}
+			}
+		}, TAG);
+		warmer.start();
+	}
+
+	/**
+	 * @return the shared online locator
+	 */
+	public Locator getLocator() {
+		Locator locator = mLocator;
+		if (locator == null) {
+			synchronized (this) {
+				locator = mLocator;
+				if (locator == null) {
+					locator = Locator.createOnlineLocator();
+					mLocator = locator;
+				}
+			}
+		}
+		return locator;
+	}
+
+	/**
+	 * @return the shared geocoder, which searches the offline gazetteer
+	 *         before the online locator
+	 */
+	public OfflineFirstGeocoder getGeocodeProvider() {
+		OfflineFirstGeocoder geocoder = mGeocoder;
+		if (geocoder == null) {
+			synchronized (this) {
+				geocoder = mGeocoder;
+				if (geocoder == null) {
+					geocoder = new OfflineFirstGeocoder(getLocator());
+					mGeocoder = geocoder;
+				}
+			}
+		}
+		return geocoder;
+	}
+
+	/**
+	 * @return the shared route task for the configured route service
+	 */
+	public RouteTask getRouteTask() throws Exception {
+		RouteTask routeTask = mRouteTask;
+		if (routeTask == null) {
+			synchronized (this) {
+				routeTask = mRouteTask;
+				if (routeTask == null) {
+					routeTask = RouteTask.createOnlineRouteTask(
+							mRouteServiceUrl, null);
+					mRouteTask = routeTask;
+				}
+			}
+		}
+		return routeTask;
+	}
+
+	/**
+	 * @return a new copy of the default route parameters which the caller is
+	 *         free to modify
+	 * @throws IllegalStateException
+	 *             if the parameters can't be copied
+	 */
+	public RouteParameters createRouteParameters() throws Exception {
+		RouteParameters template;
+		List<Field> fields;
+		synchronized (this) {
+			template = getRouteTemplate();
+			fields = mRouteTemplateFields;
+		}
+		try {
+			Constructor<? extends RouteParameters> constructor = template
+					.getClass().getDeclaredConstructor();
+			constructor.setAccessible(true);
+			RouteParameters copy = constructor.newInstance();
+			for (Field field : fields) {
+				Object value = field.get(template);
+				// arrays are copied so the caller can change their elements
+				if (value != null && value.getClass().isArray()) {
+					int length = Array.getLength(value);
+					Object array = Array.newInstance(value.getClass()
+							.getComponentType(), length);
+					System.arraycopy(value, 0, array, 0, length);
+					value = array;
+				}
+				field.set(copy, value);
+			}
+			return copy;
+		} catch (Exception e) {
+			// fail rather than fetch the parameters from the service on every
+			// solve
+			throw new IllegalStateException(
+					"route parameters can't be copied", e);
+		}
+	}
+
+	private synchronized RouteParameters getRouteTemplate() throws Exception {
+		if (mRouteTemplate == null) {
+			RouteParameters template = getRouteTask()
+					.retrieveDefaultRouteTaskParameters();
+			List<Field> fields = new ArrayList<Field>();
+			for (Class<?> type = template.getClass(); type != null
+					&& type != Object.class; type = type.getSuperclass()) {
+				for (Field field : type.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers)
+							|| Modifier.isFinal(modifiers))
+						continue;
+					field.setAccessible(true);
+					fields.add(field);
+				}
+			}
+			mRouteTemplateFields = fields;
+			mRouteTemplate = template;
+		}
+		return mRouteTemplate;
+	}
+}
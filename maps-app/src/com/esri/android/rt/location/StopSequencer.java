@@ -0,0 +1,162 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import com.esri.core.geometry.Point;
+
+/**
+ * Orders route stops on the device before a single solve. The first stop is
+ * the start and the last stop the destination; the stops between them are
+ * visited in nearest neighbour order which is then improved with 2-opt moves
+ * over a matrix of great circle distances.
+ */
+public class StopSequencer {
+
+	private static final double EARTH_RADIUS = 6371008.8;
+	// stop improving once a full pass gains less than this, in metres
+	private static final double MIN_GAIN = 1e-3;
+
+	private StopSequencer() {
+	}
+
+	/**
+	 * @param stops
+	 *            stop locations in WGS84
+	 * @return the visiting order as indices into stops, starting with 0 and
+	 *         ending with the last stop
+	 */
+	public static int[] order(Point[] stops) {
+		int n = stops.length;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		// nothing to reorder with fixed start and destination
+		if (n <= 3)
+			return order;
+
+		double[][] distance = distanceMatrix(stops);
+		nearestNeighbour(order, distance);
+		twoOpt(order, distance);
+		return order;
+	}
+
+	/**
+	 * @return the stops rearranged in the given order
+	 */
+	public static Point[] apply(Point[] stops, int[] order) {
+		Point[] ordered = new Point[stops.length];
+		for (int i = 0; i < order.length; i++) {
+			ordered[i] = stops[order[i]];
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return total straight line length of a visiting order in metres
+	 */
+	public static double length(Point[] stops, int[] order) {
+		double total = 0;
+		for (int i = 1; i < order.length; i++) {
+			total += haversine(stops[order[i - 1]], stops[order[i]]);
+		}
+		return total;
+	}
+
+	static double[][] distanceMatrix(Point[] stops) {
+		int n = stops.length;
+		double[][] distance = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				distance[i][j] = distance[j][i] = haversine(stops[i], stops[j]);
+			}
+		}
+		return distance;
+	}
+
+	/*
+	 * Greedily visit the closest unvisited intermediate stop, keeping the
+	 * first and last positions in place.
+	 */
+	private static void nearestNeighbour(int[] order, double[][] distance) {
+		int n = order.length;
+		for (int i = 1; i < n - 2; i++) {
+			int best = i;
+			for (int j = i + 1; j < n - 1; j++) {
+				if (distance[order[i - 1]][order[j]] < distance[order[i - 1]][order[best]])
+					best = j;
+			}
+			int swap = order[i];
+			order[i] = order[best];
+			order[best] = swap;
+		}
+	}
+
+	/*
+	 * Reverse segments of the intermediate stops while doing so shortens the
+	 * path.
+	 */
+	private static void twoOpt(int[] order, double[][] distance) {
+		int n = order.length;
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			for (int i = 1; i < n - 2; i++) {
+				for (int j = i + 1; j < n - 1; j++) {
+					int a = order[i - 1];
+					int b = order[i];
+					int c = order[j];
+					int d = order[j + 1];
+					double gain = distance[a][b] + distance[c][d]
+							- distance[a][c] - distance[b][d];
+					if (gain > MIN_GAIN) {
+						reverse(order, i, j);
+						improved = true;
+					}
+				}
+			}
+		}
+	}
+
+	private static void reverse(int[] order, int from, int to) {
+		while (from < to) {
+			int swap = order[from];
+			order[from] = order[to];
+			order[to] = swap;
+			from++;
+			to--;
+		}
+	}
+
+	static double haversine(Point a, Point b) {
+		double lat1 = Math.toRadians(a.getY());
+		double lat2 = Math.toRadians(b.getY());
+		double dLat = lat2 - lat1;
+		double dLon = Math.toRadians(b.getX() - a.getX());
+		double h = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(lat1)
+				* Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+}
@@ -0,0 +1,274 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.esri.core.geometry.Polyline;
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * Records where the device has been. Fixes are kept in primitive ring buffers
+ * and appended in batches to a memory mapped file, so a whole shift can be
+ * recorded while the heap only holds the most recent fixes. A decimated trail
+ * of bounded size is kept for drawing: when it fills up every other vertex is
+ * dropped and the spacing between vertices doubles.
+ *
+ * The file holds a 16 byte header, the magic number, record size and record
+ * count, followed by records of longitude, latitude and time.
+ */
+public class TrackRecorder {
+
+	private static final int MAGIC = 0x54524b31; // TRK1
+	private static final int HEADER_BYTES = 16;
+	private static final int RECORD_BYTES = 24;
+	// records mapped at a time when appending
+	private static final int CHUNK_RECORDS = 4096;
+	// fixes kept in memory
+	private static final int RING_SIZE = 1024;
+	// fixes collected before they are written to the file
+	private static final int FLUSH_COUNT = 32;
+	// maximum vertices in the trail
+	private static final int TRAIL_SIZE = 2048;
+	// initial trail vertex spacing in metres
+	private static final double TRAIL_SPACING = 5;
+	// fixes less accurate than this, in metres, are not recorded
+	private static final float MAX_ACCURACY = 50;
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final MappedByteBuffer mHeader;
+	private MappedByteBuffer mChunk;
+	private long mChunkStart = -1;
+	// records in the file
+	private long mFlushed;
+
+	// recent fixes, longitude and latitude pairs and times
+	private final double[] mRingCoords = new double[RING_SIZE * 2];
+	private final long[] mRingTimes = new long[RING_SIZE];
+	// fixes ever added, the newest is at (mCount - 1) % RING_SIZE
+	private long mCount;
+
+	// decimated trail in map coordinates
+	private final SpatialReference mMapSR;
+	private final double[] mTrail = new double[TRAIL_SIZE * 2];
+	private int mTrailCount;
+	private double mTrailSpacing;
+	private final double[] mProjected = new double[2];
+
+	/**
+	 * Open a track file, continuing the track already in it.
+	 *
+	 * @param mapSR
+	 *            spatial reference the trail is drawn in
+	 */
+	public TrackRecorder(File file, SpatialReference mapSR) throws IOException {
+		mMapSR = mapSR;
+		mFile = new RandomAccessFile(file, "rw");
+		mChannel = mFile.getChannel();
+		boolean existing = mChannel.size() >= HEADER_BYTES;
+		mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_BYTES);
+		if (existing && mHeader.getInt(0) == MAGIC
+				&& mHeader.getInt(4) == RECORD_BYTES) {
+			mFlushed = mHeader.getLong(8);
+		} else {
+			mHeader.putInt(0, MAGIC);
+			mHeader.putInt(4, RECORD_BYTES);
+			mHeader.putLong(8, 0);
+		}
+		mCount = mFlushed;
+		mTrailSpacing = TRAIL_SPACING
+				/ RouteTracker.metresPerUnit(mapSR == null ? 0 : mapSR.getID(), 0);
+		replay();
+	}
+
+	/*
+	 * Rebuild the ring and trail from the records already in the file.
+	 */
+	private void replay() throws IOException {
+		if (mFlushed == 0)
+			return;
+		MappedByteBuffer records = mChannel.map(FileChannel.MapMode.READ_ONLY,
+				HEADER_BYTES, mFlushed * RECORD_BYTES);
+		for (long i = 0; i < mFlushed; i++) {
+			int offset = (int) (i * RECORD_BYTES);
+			double longitude = records.getDouble(offset);
+			double latitude = records.getDouble(offset + 8);
+			long time = records.getLong(offset + 16);
+			int slot = (int) (i % RING_SIZE);
+			mRingCoords[slot * 2] = longitude;
+			mRingCoords[slot * 2 + 1] = latitude;
+			mRingTimes[slot] = time;
+			addToTrail(longitude, latitude);
+		}
+	}
+
+	/**
+	 * Record a fix, writing it to the file with the fixes collected before it
+	 * every so often.
+	 *
+	 * @param accuracy
+	 *            fix accuracy in metres, 0 if unknown
+	 * @return true if the trail changed
+	 */
+	public boolean add(long time, double longitude, double latitude,
+			float accuracy) throws IOException {
+		if (accuracy > MAX_ACCURACY)
+			return false;
+		int slot = (int) (mCount % RING_SIZE);
+		mRingCoords[slot * 2] = longitude;
+		mRingCoords[slot * 2 + 1] = latitude;
+		mRingTimes[slot] = time;
+		mCount++;
+		if (mCount - mFlushed >= FLUSH_COUNT)
+			flush();
+		return addToTrail(longitude, latitude);
+	}
+
+	/*
+	 * Append a fix to the trail if it is far enough from the last vertex,
+	 * halving the trail when it is full.
+	 */
+	private boolean addToTrail(double longitude, double latitude) {
+		WebMercator.project(longitude, latitude, WebMercator.WGS84, mMapSR,
+				mProjected);
+		double x = mProjected[0];
+		double y = mProjected[1];
+		if (mTrailCount > 0) {
+			double dx = x - mTrail[mTrailCount * 2 - 2];
+			double dy = y - mTrail[mTrailCount * 2 - 1];
+			if (dx * dx + dy * dy < mTrailSpacing * mTrailSpacing)
+				return false;
+		}
+		if (mTrailCount == TRAIL_SIZE) {
+			// keep the even vertices, the newest is replaced below anyway
+			int kept = 0;
+			for (int i = 0; i < mTrailCount; i += 2) {
+				mTrail[kept * 2] = mTrail[i * 2];
+				mTrail[kept * 2 + 1] = mTrail[i * 2 + 1];
+				kept++;
+			}
+			mTrailCount = kept;
+			mTrailSpacing *= 2;
+		}
+		mTrail[mTrailCount * 2] = x;
+		mTrail[mTrailCount * 2 + 1] = y;
+		mTrailCount++;
+		return true;
+	}
+
+	/**
+	 * Write the fixes collected since the last flush to the file.
+	 */
+	public void flush() throws IOException {
+		// fixes that fell out of the ring before being written are lost,
+		// which can't happen while the ring is larger than the flush count
+		long from = Math.max(mFlushed, mCount - RING_SIZE);
+		for (long i = from; i < mCount; i++) {
+			long chunkStart = i / CHUNK_RECORDS * CHUNK_RECORDS;
+			if (chunkStart != mChunkStart) {
+				mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE,
+						HEADER_BYTES + chunkStart * RECORD_BYTES,
+						(long) CHUNK_RECORDS * RECORD_BYTES);
+				mChunkStart = chunkStart;
+			}
+			int slot = (int) (i % RING_SIZE);
+			int offset = (int) ((i - chunkStart) * RECORD_BYTES);
+			mChunk.putDouble(offset, mRingCoords[slot * 2]);
+			mChunk.putDouble(offset + 8, mRingCoords[slot * 2 + 1]);
+			mChunk.putLong(offset + 16, mRingTimes[slot]);
+		}
+		mFlushed = mCount;
+		// the count is written last so a partly written batch is ignored
+		mHeader.putLong(8, mFlushed);
+	}
+
+	/**
+	 * Flush and force the track to storage, e.g. when the app is paused.
+	 */
+	public void sync() throws IOException {
+		flush();
+		if (mChunk != null)
+			mChunk.force();
+		mHeader.force();
+	}
+
+	public void close() throws IOException {
+		sync();
+		mChannel.close();
+		mFile.close();
+	}
+
+	/**
+	 * @return number of fixes recorded in the track
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Copy the most recent fixes, oldest first.
+	 *
+	 * @param coords
+	 *            receives longitude and latitude pairs
+	 * @param times
+	 *            receives fix times
+	 * @return number of fixes copied
+	 */
+	public int getRecent(double[] coords, long[] times) {
+		int count = (int) Math.min(Math.min(mCount, RING_SIZE), times.length);
+		for (int i = 0; i < count; i++) {
+			int slot = (int) ((mCount - count + i) % RING_SIZE);
+			coords[i * 2] = mRingCoords[slot * 2];
+			coords[i * 2 + 1] = mRingCoords[slot * 2 + 1];
+			times[i] = mRingTimes[slot];
+		}
+		return count;
+	}
+
+	public int getTrailVertexCount() {
+		return mTrailCount;
+	}
+
+	/**
+	 * @return a new polyline of the decimated trail, null until it has two
+	 *         vertices
+	 */
+	public Polyline getTrail() {
+		if (mTrailCount < 2)
+			return null;
+		Polyline line = new Polyline();
+		line.startPath(mTrail[0], mTrail[1]);
+		for (int i = 1; i < mTrailCount; i++) {
+			line.lineTo(mTrail[i * 2], mTrail[i * 2 + 1]);
+		}
+		return line;
+	}
+}
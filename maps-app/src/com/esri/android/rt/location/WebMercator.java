@@ -0,0 +1,186 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.location;
+
+import com.esri.core.geometry.GeometryEngine;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * Projects between WGS84 and Web Mercator with the spherical formulas,
+ * writing into caller supplied arrays so projecting every location fix
+ * creates no garbage. Other spatial references go through
+ * {@link GeometryEngine}.
+ */
+public class WebMercator {
+
+	public static final SpatialReference WGS84 = SpatialReference.create(4326);
+	public static final SpatialReference WEB_MERCATOR = SpatialReference
+			.create(102100);
+
+	private static final double RADIUS = 6378137.0;
+	// latitude at which web mercator is square
+	private static final double MAX_LATITUDE = 85.0511287798;
+
+	private WebMercator() {
+	}
+
+	public static boolean isWgs84(SpatialReference sr) {
+		return sr != null && sr.getID() == 4326;
+	}
+
+	public static boolean isWebMercator(SpatialReference sr) {
+		if (sr == null)
+			return false;
+		int wkid = sr.getID();
+		return wkid == 102100 || wkid == 102113 || wkid == 3857
+				|| wkid == 900913;
+	}
+
+	/**
+	 * Project a WGS84 location to web mercator.
+	 *
+	 * @param out
+	 *            receives x in out[0] and y in out[1]
+	 */
+	public static void fromWgs84(double longitude, double latitude,
+			double[] out) {
+		if (latitude > MAX_LATITUDE)
+			latitude = MAX_LATITUDE;
+		else if (latitude < -MAX_LATITUDE)
+			latitude = -MAX_LATITUDE;
+		out[0] = RADIUS * Math.toRadians(longitude);
+		out[1] = RADIUS
+				* Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude) / 2));
+	}
+
+	/**
+	 * Project a web mercator location to WGS84.
+	 *
+	 * @param out
+	 *            receives the longitude in out[0] and latitude in out[1]
+	 */
+	public static void toWgs84(double x, double y, double[] out) {
+		out[0] = Math.toDegrees(x / RADIUS);
+		out[1] = Math.toDegrees(Math.atan(Math.sinh(y / RADIUS)));
+	}
+
+	/**
+	 * Project x,y pairs from WGS84 to web mercator. The source and destination
+	 * may be the same array.
+	 *
+	 * @param count
+	 *            number of points
+	 */
+	public static void fromWgs84(double[] src, int srcOffset, double[] dst,
+			int dstOffset, int count) {
+		for (int i = 0; i < count * 2; i += 2) {
+			double latitude = src[srcOffset + i + 1];
+			if (latitude > MAX_LATITUDE)
+				latitude = MAX_LATITUDE;
+			else if (latitude < -MAX_LATITUDE)
+				latitude = -MAX_LATITUDE;
+			dst[dstOffset + i] = RADIUS * Math.toRadians(src[srcOffset + i]);
+			dst[dstOffset + i + 1] = RADIUS
+					* Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude)
+							/ 2));
+		}
+	}
+
+	/**
+	 * Project x,y pairs from web mercator to WGS84. The source and destination
+	 * may be the same array.
+	 *
+	 * @param count
+	 *            number of points
+	 */
+	public static void toWgs84(double[] src, int srcOffset, double[] dst,
+			int dstOffset, int count) {
+		for (int i = 0; i < count * 2; i += 2) {
+			double y = src[srcOffset + i + 1];
+			dst[dstOffset + i] = Math.toDegrees(src[srcOffset + i] / RADIUS);
+			dst[dstOffset + i + 1] = Math.toDegrees(Math.atan(Math.sinh(y
+					/ RADIUS)));
+		}
+	}
+
+	/**
+	 * Project a location between any two spatial references, without
+	 * allocating when they are WGS84 and web mercator.
+	 *
+	 * @param out
+	 *            receives x in out[0] and y in out[1]
+	 */
+	public static void project(double x, double y, SpatialReference from,
+			SpatialReference to, double[] out) {
+		if (from == null || to == null || from.getID() == to.getID()) {
+			out[0] = x;
+			out[1] = y;
+		} else if (isWgs84(from) && isWebMercator(to)) {
+			fromWgs84(x, y, out);
+		} else if (isWebMercator(from) && isWgs84(to)) {
+			toWgs84(x, y, out);
+		} else {
+			Point point = (Point) GeometryEngine.project(new Point(x, y), from,
+					to);
+			out[0] = point.getX();
+			out[1] = point.getY();
+		}
+	}
+
+	/**
+	 * Project x,y pairs in place between any two spatial references.
+	 *
+	 * @param count
+	 *            number of points
+	 */
+	public static void project(double[] coords, int count,
+			SpatialReference from, SpatialReference to) {
+		if (from == null || to == null || from.getID() == to.getID()) {
+			return;
+		} else if (isWgs84(from) && isWebMercator(to)) {
+			fromWgs84(coords, 0, coords, 0, count);
+		} else if (isWebMercator(from) && isWgs84(to)) {
+			toWgs84(coords, 0, coords, 0, count);
+		} else {
+			for (int i = 0; i < count * 2; i += 2) {
+				Point point = (Point) GeometryEngine.project(new Point(
+						coords[i], coords[i + 1]), from, to);
+				coords[i] = point.getX();
+				coords[i + 1] = point.getY();
+			}
+		}
+	}
+
+	/**
+	 * @return a new point projected between any two spatial references
+	 */
+	public static Point project(Point point, SpatialReference from,
+			SpatialReference to) {
+		double[] xy = new double[2];
+		project(point.getX(), point.getY(), from, to, xy);
+		return new Point(xy[0], xy[1]);
+	}
+}
@@ -0,0 +1,452 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.esri.android.map.ags.ArcGISFeatureLayer;
+import com.esri.core.map.CallbackListener;
+import com.esri.core.map.FeatureEditResult;
+
+/**
+ * Uploads feature attachments. Photos are downscaled and recompressed on a
+ * background pool before they are sent, and only a few uploads run at once.
+ *
+ * Downscaled copies are turned upright, keep the time, camera and location
+ * tags of the photo and are named like the original file. They are kept in
+ * the cache dir in a directory derived from the original file, so an upload
+ * interrupted by a crash or lost connection resumes with the copy already
+ * made. Uploads restart from the beginning of the file, as the feature
+ * service takes an attachment in a single request.
+ * Which attachments were uploaded is recorded by the {@link EditJournal}.
+ */
+public class AttachmentUploader {
+
+	private static final String TAG = "AttachmentUploader";
+
+	// longest side of uploaded photos in pixels, and their JPEG quality
+	public static final int DEFAULT_MAX_PIXELS = 1600;
+	public static final int DEFAULT_QUALITY = 80;
+
+	private static final int PREPARE_THREADS = 2;
+	// uploads running at once
+	private static final int MAX_UPLOADS = 2;
+	// EXIF tags kept on downscaled photos
+	private static final String[] EXIF_TAGS = { ExifInterface.TAG_DATETIME,
+			ExifInterface.TAG_MAKE, ExifInterface.TAG_MODEL,
+			ExifInterface.TAG_GPS_LATITUDE, ExifInterface.TAG_GPS_LATITUDE_REF,
+			ExifInterface.TAG_GPS_LONGITUDE,
+			ExifInterface.TAG_GPS_LONGITUDE_REF,
+			ExifInterface.TAG_GPS_ALTITUDE, ExifInterface.TAG_GPS_ALTITUDE_REF,
+			ExifInterface.TAG_GPS_TIMESTAMP, ExifInterface.TAG_GPS_DATESTAMP,
+			ExifInterface.TAG_GPS_PROCESSING_METHOD };
+
+	/**
+	 * Told about the progress of the uploads queued since the uploader was
+	 * last idle, on a background thread.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param succeeded
+		 *            uploads the server accepted
+		 * @param failed
+		 *            uploads the server refused or that couldn't be sent
+		 * @param total
+		 *            uploads queued
+		 * @param bytes
+		 *            bytes uploaded
+		 * @param bytesPerSecond
+		 *            average upload rate
+		 */
+		void onProgress(int succeeded, int failed, int total, long bytes,
+				long bytesPerSecond);
+	}
+
+	private static AttachmentUploader sInstance;
+
+	private final File mDir;
+	private final ExecutorService mPrepareExecutor;
+	private volatile int mMaxPixels = DEFAULT_MAX_PIXELS;
+	private volatile int mQuality = DEFAULT_QUALITY;
+	private volatile ProgressListener mListener;
+
+	// prepared uploads waiting for a free slot
+	private final LinkedList<Upload> mReady = new LinkedList<Upload>();
+	private int mInFlight;
+	// progress of the uploads queued since the uploader was last idle
+	private int mTotal;
+	private int mSucceeded;
+	private int mFailed;
+	private long mBytes;
+	private long mStarted;
+
+	private AttachmentUploader(Context context) {
+		mDir = new File(context.getCacheDir(), "uploads");
+		if (!mDir.exists() && !mDir.mkdirs()) {
+			Log.w(TAG, "unable to create " + mDir);
+		}
+		mPrepareExecutor = Executors.newFixedThreadPool(PREPARE_THREADS,
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "AttachmentPrepare #" + mCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public static synchronized AttachmentUploader getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new AttachmentUploader(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Set the longest side photos are downscaled to and the JPEG quality they
+	 * are recompressed with.
+	 */
+	public void setTargetSize(int maxPixels, int quality) {
+		mMaxPixels = maxPixels;
+		mQuality = quality;
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Queue an attachment for upload. The callback is told the result when it
+	 * has been sent.
+	 */
+	public void upload(final ArcGISFeatureLayer layer, final int objectId,
+			final File file, final CallbackListener<FeatureEditResult> callback) {
+		synchronized (this) {
+			if (mSucceeded + mFailed == mTotal) {
+				// idle, start measuring a new batch
+				mTotal = 0;
+				mSucceeded = 0;
+				mFailed = 0;
+				mBytes = 0;
+				mStarted = SystemClock.elapsedRealtime();
+			}
+			mTotal++;
+		}
+		mPrepareExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				File prepared = prepare(file);
+				synchronized (AttachmentUploader.this) {
+					mReady.add(new Upload(layer, objectId, file, prepared,
+							callback));
+				}
+				startUploads();
+			}
+		});
+	}
+
+	/*
+	 * Start as many ready uploads as there are free slots.
+	 */
+	private void startUploads() {
+		List<Upload> uploads = new ArrayList<Upload>();
+		synchronized (this) {
+			while (mInFlight < MAX_UPLOADS && !mReady.isEmpty()) {
+				uploads.add(mReady.removeFirst());
+				mInFlight++;
+			}
+		}
+		for (final Upload upload : uploads) {
+			upload.layer.addAttachment(upload.objectId, upload.file,
+					new CallbackListener<FeatureEditResult>() {
+
+						@Override
+						public void onCallback(FeatureEditResult result) {
+							finished(upload, true, result.isSuccess());
+							upload.callback.onCallback(result);
+						}
+
+						@Override
+						public void onError(Throwable e) {
+							finished(upload, false, false);
+							upload.callback.onError(e);
+						}
+					});
+		}
+	}
+
+	/*
+	 * @param answered
+	 *            the server answered, whether it took the upload or not
+	 */
+	private void finished(Upload upload, boolean answered, boolean success) {
+		int succeeded;
+		int failed;
+		int total;
+		long bytes;
+		long rate;
+		synchronized (this) {
+			mInFlight--;
+			if (success) {
+				mSucceeded++;
+				mBytes += upload.file.length();
+			} else {
+				mFailed++;
+			}
+			long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mStarted);
+			succeeded = mSucceeded;
+			failed = mFailed;
+			total = mTotal;
+			bytes = mBytes;
+			rate = mBytes * 1000 / elapsed;
+		}
+		// the downscaled copy is only kept to send again when the server
+		// couldn't be reached, a refused upload isn't retried
+		if (answered && upload.file != upload.original) {
+			if (!upload.file.delete())
+				Log.w(TAG, "unable to delete " + upload.file);
+			upload.file.getParentFile().delete();
+		}
+		Log.d(TAG, "uploaded " + succeeded + " of " + total + ", " + failed
+				+ " failed, " + bytes + " bytes at " + rate + " bytes/s");
+		ProgressListener listener = mListener;
+		if (listener != null)
+			listener.onProgress(succeeded, failed, total, bytes, rate);
+		startUploads();
+	}
+
+	/*
+	 * Downscale and recompress a photo larger than the target size, reusing a
+	 * copy made before. Other files, and photos that can't be downscaled, are
+	 * uploaded as they are.
+	 */
+	private File prepare(File original) {
+		try {
+			return downscale(original);
+		} catch (RuntimeException e) {
+			// e.g. a panorama too narrow to scale
+			Log.w(TAG, "unable to downscale " + original, e);
+			return original;
+		}
+	}
+
+	private File downscale(File original) {
+		int maxPixels = mMaxPixels;
+		// the server names the attachment after the file, so the copy keeps
+		// the name of the original in a directory of its own
+		File dir = new File(mDir, Integer.toHexString(original.getPath()
+				.hashCode())
+				+ "-"
+				+ original.lastModified()
+				+ "-"
+				+ maxPixels);
+		File prepared = new File(dir, jpegName(original.getName()));
+		if (prepared.exists())
+			return prepared;
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(original.getPath(), options);
+		int longest = Math.max(options.outWidth, options.outHeight);
+		if (longest <= maxPixels)
+			return original;
+		if (!dir.exists() && !dir.mkdirs()) {
+			Log.w(TAG, "unable to create " + dir);
+			return original;
+		}
+
+		// decode at the smallest power of two reduction still above the target
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = 1;
+		while (longest / (options.inSampleSize * 2) >= maxPixels)
+			options.inSampleSize *= 2;
+		Bitmap bitmap = null;
+		OutputStream out = null;
+		File tmp = new File(dir, prepared.getName() + ".tmp");
+		try {
+			bitmap = BitmapFactory.decodeFile(original.getPath(), options);
+			if (bitmap == null)
+				return original;
+			// scale to the target and turn the photo the way the camera was
+			// held, as the copy has no orientation tag to go by
+			Matrix matrix = new Matrix();
+			float scale = (float) maxPixels
+					/ Math.max(bitmap.getWidth(), bitmap.getHeight());
+			if (scale < 1)
+				matrix.postScale(scale, scale);
+			orient(matrix, new ExifInterface(original.getPath())
+					.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+							ExifInterface.ORIENTATION_NORMAL));
+			Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0,
+					bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+			if (transformed != bitmap) {
+				bitmap.recycle();
+				bitmap = transformed;
+			}
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality, out);
+			out.close();
+			out = null;
+			copyExif(original, tmp);
+			if (!tmp.renameTo(prepared))
+				return original;
+			Log.d(TAG, original.getName() + " " + original.length() + " -> "
+					+ prepared.length() + " bytes");
+			return prepared;
+		} catch (IOException e) {
+			Log.w(TAG, "unable to downscale " + original, e);
+			return original;
+		} catch (OutOfMemoryError e) {
+			Log.w(TAG, "unable to downscale " + original, e);
+			return original;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (bitmap != null)
+				bitmap.recycle();
+			tmp.delete();
+			if (!prepared.exists())
+				dir.delete();
+		}
+	}
+
+	/*
+	 * The name of the original with the extension of a JPEG.
+	 */
+	private static String jpegName(String name) {
+		String lower = name.toLowerCase(Locale.US);
+		if (lower.endsWith(".jpg") || lower.endsWith(".jpeg"))
+			return name;
+		int dot = name.lastIndexOf('.');
+		return (dot > 0 ? name.substring(0, dot) : name) + ".jpg";
+	}
+
+	/*
+	 * Add the transformation of an EXIF orientation to a matrix.
+	 */
+	private static void orient(Matrix matrix, int orientation) {
+		switch (orientation) {
+		case ExifInterface.ORIENTATION_ROTATE_90:
+			matrix.postRotate(90);
+			break;
+		case ExifInterface.ORIENTATION_ROTATE_180:
+			matrix.postRotate(180);
+			break;
+		case ExifInterface.ORIENTATION_ROTATE_270:
+			matrix.postRotate(270);
+			break;
+		case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+			matrix.postScale(-1, 1);
+			break;
+		case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+			matrix.postScale(1, -1);
+			break;
+		case ExifInterface.ORIENTATION_TRANSPOSE:
+			matrix.postRotate(90);
+			matrix.postScale(-1, 1);
+			break;
+		case ExifInterface.ORIENTATION_TRANSVERSE:
+			matrix.postRotate(270);
+			matrix.postScale(-1, 1);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * Copy the time, camera and location tags of a photo to its copy.
+	 */
+	private static void copyExif(File from, File to) {
+		try {
+			ExifInterface source = new ExifInterface(from.getPath());
+			ExifInterface target = new ExifInterface(to.getPath());
+			for (String tag : EXIF_TAGS) {
+				String value = source.getAttribute(tag);
+				if (value != null)
+					target.setAttribute(tag, value);
+			}
+			target.setAttribute(ExifInterface.TAG_ORIENTATION,
+					String.valueOf(ExifInterface.ORIENTATION_NORMAL));
+			target.saveAttributes();
+		} catch (IOException e) {
+			Log.w(TAG, "unable to copy the EXIF tags of " + from, e);
+		}
+	}
+
+	private static class Upload {
+		final ArcGISFeatureLayer layer;
+		final int objectId;
+		final File original;
+		final File file;
+		final CallbackListener<FeatureEditResult> callback;
+
+		Upload(ArcGISFeatureLayer layer, int objectId, File original,
+				File file, CallbackListener<FeatureEditResult> callback) {
+			this.layer = layer;
+			this.objectId = objectId;
+			this.original = original;
+			this.file = file;
+			this.callback = callback;
+		}
+	}
+}
@@ -33,6 +33,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -84,6 +85,19 @@ public class BasemapsAdapter extends BaseAdapter {
 		super.notifyDataSetChanged();
 	}
 
+	/**
+	 * Show the thumbnail of an item that has been loaded since its cell was
+	 * drawn. Cells scrolled out of view pick it up in getView.
+	 */
+	public void updateThumbnail(AdapterView<?> parent, int position) {
+		int index = position - parent.getFirstVisiblePosition();
+		if (index < 0 || index >= parent.getChildCount())
+			return;
+		ImageView image = (ImageView) parent.getChildAt(index).findViewById(
+				R.id.listImageView);
+		image.setImageBitmap(items.get(position).itemThumbnail);
+	}
+
 	@Override
 	public int getCount() {
 		return items == null ? 0 : items.size();
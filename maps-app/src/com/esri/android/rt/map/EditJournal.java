@@ -0,0 +1,1358 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.esri.android.map.ags.ArcGISFeatureLayer;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryEngine;
+import com.esri.core.geometry.MultiPath;
+import com.esri.core.geometry.Point;
+import com.esri.core.geometry.Polygon;
+import com.esri.core.geometry.Polyline;
+import com.esri.core.map.CallbackListener;
+import com.esri.core.map.FeatureEditResult;
+import com.esri.core.map.FeatureSet;
+import com.esri.core.map.Field;
+import com.esri.core.map.Graphic;
+import com.esri.core.tasks.ags.query.Query;
+
+/**
+ * Durable journal of feature edits. Adds, updates, deletes and attachment
+ * changes are appended to a file before anything is sent, each record framed
+ * by its length and CRC so a record torn by a crash is told apart from a
+ * whole one. Edits are coalesced in
+ * memory per layer and object id, so a day of offline edits to the same
+ * features goes to the server as one applyEdits call per layer plus the
+ * attachment requests. New attachments are sent through the
+ * {@link AttachmentUploader}.
+ *
+ * When an edit has been applied a synced record is appended, so replaying the
+ * journal after a restart only sends what the server hasn't acknowledged.
+ * Updates and deletes can safely be sent again. Adds are only sent again if no
+ * result came back for them. Features added offline get negative temporary
+ * object ids until the server assigns theirs.
+ */
+public class EditJournal {
+
+	private static final String TAG = "EditJournal";
+
+	private static final int MAGIC = 0x45444a31; // EDJ1
+	// version 1 records had no frame and strings of at most 64 KB
+	private static final int VERSION = 2;
+
+	// record types
+	private static final byte ADD = 1;
+	private static final byte UPDATE = 2;
+	private static final byte DELETE = 3;
+	private static final byte ADD_ATTACHMENT = 4;
+	private static final byte DELETE_ATTACHMENT = 5;
+	private static final byte FEATURE_SYNCED = 6;
+	private static final byte ATTACHMENT_SYNCED = 7;
+
+	// kind of an edit with only attachment changes
+	private static final byte ATTACHMENTS = 0;
+
+	// attribute value types
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte FLOAT = 5;
+	private static final byte SHORT = 6;
+	private static final byte BOOLEAN = 7;
+
+	// geometry types
+	private static final byte NO_GEOMETRY = 0;
+	private static final byte POINT = 1;
+	private static final byte POLYLINE = 2;
+	private static final byte POLYGON = 3;
+	private static final byte JSON = 4;
+
+	/**
+	 * Told how a sync went, on a background thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param applied
+		 *            edits and attachment changes the server accepted
+		 * @param rejected
+		 *            edits the server refused, which are dropped
+		 */
+		void onSynced(ArcGISFeatureLayer layer, int applied, int rejected);
+
+		/**
+		 * The server couldn't be reached, the edits are kept for the next
+		 * sync.
+		 */
+		void onSyncFailed(ArcGISFeatureLayer layer, Throwable e);
+	}
+
+	private static EditJournal sInstance;
+
+	private final File mFile;
+	private final AttachmentUploader mUploader;
+	private DataOutputStream mOut;
+	private FileOutputStream mFileOut;
+	private long mSequence;
+	private int mNextTempId = -1;
+
+	// edits not yet sent, by layer url and object id, in the order made
+	private final Map<String, LinkedHashMap<Integer, Edit>> mPending = new HashMap<String, LinkedHashMap<Integer, Edit>>();
+	// edits being sent, by layer url and object id
+	private final Map<String, LinkedHashMap<Integer, Edit>> mSyncing = new HashMap<String, LinkedHashMap<Integer, Edit>>();
+
+	private EditJournal(Context context) {
+		File dir = new File(context.getFilesDir(), "edits");
+		if (!dir.exists() && !dir.mkdirs()) {
+			Log.w(TAG, "unable to create " + dir);
+		}
+		mFile = new File(dir, "journal.bin");
+		mUploader = AttachmentUploader.getInstance(context);
+		replay();
+		compact();
+	}
+
+	public static synchronized EditJournal getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new EditJournal(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Record a new feature. If the layer has a GlobalID field the feature is
+	 * given one, by which a sync finds it on the server when an earlier send
+	 * got through but its answer was lost.
+	 *
+	 * @return the temporary object id of the feature
+	 */
+	public synchronized int add(ArcGISFeatureLayer layer, Geometry geometry,
+			Map<String, Object> attributes) {
+		Edit edit = new Edit(ADD);
+		edit.geometry = geometry;
+		edit.attributes.putAll(attributes);
+		String globalIdField = globalIdField(layer);
+		if (globalIdField != null && edit.attributes.get(globalIdField) == null)
+			edit.attributes.put(globalIdField, "{"
+					+ UUID.randomUUID().toString().toUpperCase(Locale.US) + "}");
+		int objectId = mNextTempId--;
+		append(layer.getUrl(), objectId, edit);
+		return objectId;
+	}
+
+	private static String globalIdField(ArcGISFeatureLayer layer) {
+		Field[] fields = layer.getFields();
+		if (fields == null)
+			return null;
+		for (Field field : fields) {
+			if (field.getFieldType() == Field.esriFieldTypeGlobalID)
+				return field.getName();
+		}
+		return null;
+	}
+
+	/**
+	 * Record changed attributes of a feature, and its geometry if it changed.
+	 *
+	 * @param geometry
+	 *            the new geometry, null if unchanged
+	 */
+	public synchronized void update(String layerUrl, int objectId,
+			Map<String, Object> attributes, Geometry geometry) {
+		Edit edit = new Edit(UPDATE);
+		edit.geometry = geometry;
+		if (attributes != null)
+			edit.attributes.putAll(attributes);
+		append(layerUrl, objectId, edit);
+	}
+
+	public synchronized void delete(String layerUrl, int objectId) {
+		append(layerUrl, objectId, new Edit(DELETE));
+	}
+
+	public synchronized void addAttachment(String layerUrl, int objectId,
+			File file) {
+		Edit edit = new Edit(ATTACHMENTS);
+		edit.attachments.add(new AttachmentOp(ADD_ATTACHMENT, file.getPath(),
+				0));
+		append(layerUrl, objectId, edit);
+	}
+
+	public synchronized void deleteAttachment(String layerUrl, int objectId,
+			int attachmentId) {
+		Edit edit = new Edit(ATTACHMENTS);
+		edit.attachments.add(new AttachmentOp(DELETE_ATTACHMENT, null,
+				attachmentId));
+		append(layerUrl, objectId, edit);
+	}
+
+	/**
+	 * Apply the edits of a feature the server hasn't acknowledged yet to its
+	 * attributes as the server has them.
+	 *
+	 * @return the attributes as the user last saved them
+	 */
+	public synchronized Map<String, Object> withPendingEdits(String layerUrl,
+			int objectId, Map<String, Object> attributes) {
+		Map<String, Object> saved = attributes == null ? new HashMap<String, Object>()
+				: new HashMap<String, Object>(attributes);
+		Integer key = Integer.valueOf(objectId);
+		for (Edit edit : unacknowledged(layerUrl, key)) {
+			saved.putAll(edit.attributes);
+		}
+		return saved;
+	}
+
+	/**
+	 * Apply the edits of a feature the server hasn't acknowledged yet to a
+	 * graphic of the feature, e.g. so its popup shows them.
+	 *
+	 * @return a copy of the graphic as the user last saved it, or the graphic
+	 *         itself if it has no such edits
+	 */
+	public synchronized Graphic withPendingEdits(String layerUrl,
+			String oidField, Graphic graphic) {
+		Object oid = oidField == null ? null : graphic
+				.getAttributeValue(oidField);
+		if (!(oid instanceof Number))
+			return graphic;
+		List<Edit> edits = unacknowledged(layerUrl,
+				Integer.valueOf(((Number) oid).intValue()));
+		if (edits.isEmpty())
+			return graphic;
+		Geometry geometry = graphic.getGeometry();
+		Map<String, Object> attributes = graphic.getAttributes() == null ? new HashMap<String, Object>()
+				: new HashMap<String, Object>(graphic.getAttributes());
+		for (Edit edit : edits) {
+			attributes.putAll(edit.attributes);
+			if (edit.geometry != null)
+				geometry = edit.geometry;
+		}
+		return new Graphic(geometry, graphic.getSymbol(), attributes);
+	}
+
+	// edits of a feature being sent and pending, oldest first
+	private List<Edit> unacknowledged(String layerUrl, Integer objectId) {
+		List<Edit> edits = new ArrayList<Edit>(2);
+		LinkedHashMap<Integer, Edit> syncing = mSyncing.get(layerUrl);
+		if (syncing != null && syncing.containsKey(objectId))
+			edits.add(syncing.get(objectId));
+		LinkedHashMap<Integer, Edit> pending = mPending.get(layerUrl);
+		if (pending != null && pending.containsKey(objectId))
+			edits.add(pending.get(objectId));
+		return edits;
+	}
+
+	/**
+	 * Find the attributes an edit really changed. Numbers are compared by
+	 * value, and null and empty text are the same.
+	 *
+	 * @return the changed attributes and their new values
+	 */
+	public static Map<String, Object> changedAttributes(
+			Map<String, Object> original, Map<String, Object> updated) {
+		Map<String, Object> changes = new LinkedHashMap<String, Object>();
+		if (updated == null)
+			return changes;
+		for (Map.Entry<String, Object> entry : updated.entrySet()) {
+			Object before = original == null ? null : original.get(entry
+					.getKey());
+			if (!same(before, entry.getValue()))
+				changes.put(entry.getKey(), entry.getValue());
+		}
+		return changes;
+	}
+
+	private static boolean same(Object a, Object b) {
+		if ("".equals(a))
+			a = null;
+		if ("".equals(b))
+			b = null;
+		if (a == null || b == null)
+			return a == b;
+		if (a instanceof Number && b instanceof Number)
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		return a.equals(b);
+	}
+
+	/**
+	 * @return number of features with edits not yet sent
+	 */
+	public synchronized int getPendingCount() {
+		int count = 0;
+		for (LinkedHashMap<Integer, Edit> edits : mPending.values()) {
+			count += edits.size();
+		}
+		return count;
+	}
+
+	/*
+	 * Write an edit to the journal and merge it with the pending edits of its
+	 * feature.
+	 */
+	private void append(String layerUrl, int objectId, Edit edit) {
+		RecordBuffer records = new RecordBuffer();
+		try {
+			if (edit.kind != ATTACHMENTS) {
+				edit.seq = ++mSequence;
+				writeRecord(records.out, edit.kind, edit.seq, layerUrl, objectId);
+				if (edit.kind != DELETE)
+					writeFeature(records.out, edit);
+				records.end();
+			}
+			for (AttachmentOp op : edit.attachments) {
+				op.seq = ++mSequence;
+				writeAttachment(records.out, op, layerUrl, objectId);
+				records.end();
+			}
+			write(records);
+		} catch (IOException e) {
+			// keep the edit in memory, it can still be sent this session
+			Log.w(TAG, "unable to journal edit", e);
+		}
+		merge(layerUrl, objectId, edit);
+	}
+
+	/*
+	 * Append whole records to the journal. If the write fails the journal is
+	 * cut back to where it ended, so the records appended later can be read.
+	 */
+	private void write(RecordBuffer records) {
+		long start = -1;
+		try {
+			openForAppend();
+			mOut.flush();
+			start = mFile.length();
+			records.writeTo(mOut);
+			mOut.flush();
+			mFileOut.getFD().sync();
+		} catch (IOException e) {
+			Log.w(TAG, "unable to journal edit", e);
+			closeOutput();
+			if (start >= 0)
+				truncate(start);
+		}
+	}
+
+	private void truncate(long length) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mFile, "rw");
+			file.setLength(length);
+		} catch (IOException e) {
+			Log.w(TAG, "unable to truncate " + mFile, e);
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void merge(String layerUrl, int objectId, Edit edit) {
+		LinkedHashMap<Integer, Edit> edits = mPending.get(layerUrl);
+		if (edits == null) {
+			edits = new LinkedHashMap<Integer, Edit>();
+			mPending.put(layerUrl, edits);
+		}
+		Integer key = Integer.valueOf(objectId);
+		Edit merged = Edit.merge(edits.get(key), edit);
+		if (merged == null)
+			edits.remove(key);
+		else
+			edits.put(key, merged);
+		if (edits.isEmpty())
+			mPending.remove(layerUrl);
+	}
+
+	/*
+	 * Put edits that couldn't be sent back in front of those made since.
+	 */
+	private void mergeBack(String layerUrl, int objectId, Edit older) {
+		LinkedHashMap<Integer, Edit> edits = mPending.get(layerUrl);
+		if (edits == null) {
+			edits = new LinkedHashMap<Integer, Edit>();
+			mPending.put(layerUrl, edits);
+		}
+		Integer key = Integer.valueOf(objectId);
+		Edit newer = edits.remove(key);
+		Edit merged = newer == null ? older : Edit.merge(older, newer);
+		if (merged != null)
+			edits.put(key, merged);
+		if (edits.isEmpty())
+			mPending.remove(layerUrl);
+	}
+
+	/**
+	 * Send the pending edits of a layer in one applyEdits call, then its
+	 * attachment changes. New features with a GlobalID are looked up first so
+	 * those already on the server aren't added twice. Does nothing while the
+	 * layer is being synced.
+	 */
+	public void sync(final ArcGISFeatureLayer layer, final Listener listener) {
+		final String url = layer.getUrl();
+		String oidField = layer.getObjectIdField();
+		if (oidField == null)
+			return;
+		final LinkedHashMap<Integer, Edit> edits;
+		synchronized (this) {
+			if (url == null || mSyncing.containsKey(url)
+					|| !mPending.containsKey(url))
+				return;
+			// edits made from now on are pending for the next sync
+			edits = mPending.remove(url);
+			mSyncing.put(url, edits);
+		}
+
+		String globalIdField = globalIdField(layer);
+		final SyncRun run = new SyncRun(layer, url, edits, listener, oidField,
+				globalIdField);
+		String where = run.addedWhere();
+		if (where == null) {
+			run.send();
+			return;
+		}
+		Query query = new Query();
+		query.setWhere(where);
+		query.setOutFields(new String[] { oidField, globalIdField });
+		query.setReturnGeometry(false);
+		layer.queryFeatures(query, new CallbackListener<FeatureSet>() {
+
+			@Override
+			public void onCallback(FeatureSet features) {
+				run.found(features);
+				run.send();
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				run.failed(e);
+			}
+		});
+	}
+
+	/*
+	 * One sync of a layer: the edits taken from the pending edits, which are
+	 * merged back if they couldn't be sent.
+	 */
+	private class SyncRun {
+		final ArcGISFeatureLayer mLayer;
+		final String mUrl;
+		final LinkedHashMap<Integer, Edit> mEdits;
+		final Listener mListener;
+		final String mOidField;
+		final String mGlobalIdField;
+		// object ids of new features found on the server by their GlobalID
+		final Map<Integer, Integer> mFoundIds = new HashMap<Integer, Integer>();
+		// object ids assigned to features added in this run
+		final Map<Integer, Integer> mServerIds = new HashMap<Integer, Integer>();
+		int mApplied;
+		int mRejected;
+		int mOutstanding;
+		Throwable mError;
+
+		SyncRun(ArcGISFeatureLayer layer, String url,
+				LinkedHashMap<Integer, Edit> edits, Listener listener,
+				String oidField, String globalIdField) {
+			mLayer = layer;
+			mUrl = url;
+			mEdits = edits;
+			mListener = listener;
+			mOidField = oidField;
+			mGlobalIdField = globalIdField;
+		}
+
+		/*
+		 * Where clause selecting the new features by their GlobalID, null if
+		 * none has one.
+		 */
+		String addedWhere() {
+			if (mGlobalIdField == null)
+				return null;
+			StringBuilder where = new StringBuilder();
+			for (Edit edit : mEdits.values()) {
+				Object key = edit.kind == ADD ? edit.attributes
+						.get(mGlobalIdField) : null;
+				if (!(key instanceof String))
+					continue;
+				where.append(where.length() == 0 ? mGlobalIdField + " IN ('"
+						: ",'");
+				where.append(((String) key).replace("'", "''")).append('\'');
+			}
+			return where.length() == 0 ? null : where.append(')').toString();
+		}
+
+		/*
+		 * Note the new features that are already on the server, they are sent
+		 * as updates.
+		 */
+		void found(FeatureSet features) {
+			Graphic[] graphics = features == null ? null : features
+					.getGraphics();
+			if (graphics == null)
+				return;
+			Map<String, Integer> serverIds = new HashMap<String, Integer>();
+			for (Graphic graphic : graphics) {
+				Object key = graphic.getAttributeValue(mGlobalIdField);
+				Object oid = graphic.getAttributeValue(mOidField);
+				if (key instanceof String && oid instanceof Number)
+					serverIds.put(((String) key).toUpperCase(Locale.US),
+							Integer.valueOf(((Number) oid).intValue()));
+			}
+			for (Map.Entry<Integer, Edit> entry : mEdits.entrySet()) {
+				Edit edit = entry.getValue();
+				Object key = edit.kind == ADD ? edit.attributes
+						.get(mGlobalIdField) : null;
+				Integer serverId = key instanceof String ? serverIds
+						.get(((String) key).toUpperCase(Locale.US)) : null;
+				if (serverId != null) {
+					Log.w(TAG, "feature " + entry.getKey()
+							+ " was added before as " + serverId);
+					mFoundIds.put(entry.getKey(), serverId);
+				}
+			}
+		}
+
+		void send() {
+			final List<Integer> addIds = new ArrayList<Integer>();
+			final List<Integer> deleteIds = new ArrayList<Integer>();
+			final List<Integer> updateIds = new ArrayList<Integer>();
+			List<Graphic> adds = new ArrayList<Graphic>();
+			List<Graphic> deletes = new ArrayList<Graphic>();
+			List<Graphic> updates = new ArrayList<Graphic>();
+			for (Map.Entry<Integer, Edit> entry : mEdits.entrySet()) {
+				Integer objectId = entry.getKey();
+				Edit edit = entry.getValue();
+				Map<String, Object> attributes = new HashMap<String, Object>(
+						edit.attributes);
+				Integer foundId = mFoundIds.get(objectId);
+				if (edit.kind == ADD && foundId != null) {
+					// already added, bring it up to date instead
+					attributes.remove(mGlobalIdField);
+					attributes.put(mOidField, foundId);
+					updates.add(new Graphic(edit.geometry, null, attributes));
+					updateIds.add(objectId);
+				} else if (edit.kind == ADD) {
+					attributes.remove(mOidField);
+					adds.add(new Graphic(edit.geometry, null, attributes));
+					addIds.add(objectId);
+				} else if (edit.kind == UPDATE) {
+					attributes.put(mOidField, objectId);
+					updates.add(new Graphic(edit.geometry, null, attributes));
+					updateIds.add(objectId);
+				} else if (edit.kind == DELETE) {
+					attributes.put(mOidField, objectId);
+					deletes.add(new Graphic(null, null, attributes));
+					deleteIds.add(objectId);
+				}
+			}
+
+			if (adds.isEmpty() && deletes.isEmpty() && updates.isEmpty()) {
+				syncAttachments();
+				return;
+			}
+			mLayer.applyEdits(adds.isEmpty() ? null : adds
+					.toArray(new Graphic[0]), deletes.isEmpty() ? null
+					: deletes.toArray(new Graphic[0]), updates.isEmpty() ? null
+					: updates.toArray(new Graphic[0]),
+					new CallbackListener<FeatureEditResult[][]>() {
+
+						@Override
+						public void onCallback(FeatureEditResult[][] results) {
+							featuresApplied(results[0], addIds);
+							featuresApplied(results[1], deleteIds);
+							featuresApplied(results[2], updateIds);
+							syncAttachments();
+						}
+
+						@Override
+						public void onError(Throwable e) {
+							failed(e);
+						}
+					});
+		}
+
+		void featuresApplied(FeatureEditResult[] results, List<Integer> ids) {
+			synchronized (EditJournal.this) {
+				for (int i = 0; i < ids.size(); i++) {
+					Integer objectId = ids.get(i);
+					Edit edit = mEdits.get(objectId);
+					if (results == null || i >= results.length) {
+						// no answer for this edit, send it again next time
+						mergeBack(mUrl, objectId.intValue(), edit);
+						mEdits.remove(objectId);
+						continue;
+					}
+					FeatureEditResult result = results[i];
+					Integer foundId = mFoundIds.get(objectId);
+					int serverId = foundId != null ? foundId.intValue()
+							: objectId.intValue();
+					if (result.isSuccess()) {
+						mApplied++;
+						if (edit.kind == ADD && foundId == null)
+							serverId = result.getObjectId();
+					} else {
+						// the server won't take it however often it's sent
+						Log.w(TAG, "edit of " + objectId + " rejected");
+						mRejected++;
+						edit.attachments.clear();
+					}
+					featureSynced(mUrl, objectId.intValue(), edit.seq,
+							serverId);
+					mServerIds.put(objectId, Integer.valueOf(serverId));
+					edit.clearFeature();
+					if (edit.attachments.isEmpty())
+						mEdits.remove(objectId);
+				}
+			}
+		}
+
+		void syncAttachments() {
+			List<Runnable> requests = new ArrayList<Runnable>();
+			synchronized (EditJournal.this) {
+				for (Map.Entry<Integer, Edit> entry : mEdits.entrySet()) {
+					Integer objectId = entry.getKey();
+					Integer serverId = mServerIds.get(objectId);
+					final int oid = serverId != null ? serverId.intValue()
+							: objectId.intValue();
+					if (oid < 0) {
+						// the feature hasn't been added yet
+						mergeBack(mUrl, objectId.intValue(), entry.getValue());
+						continue;
+					}
+					for (final AttachmentOp op : entry.getValue().attachments) {
+						requests.add(attachmentRequest(objectId.intValue(),
+								oid, op));
+					}
+				}
+				mEdits.clear();
+				mOutstanding = requests.size();
+				if (mOutstanding == 0) {
+					finish();
+					return;
+				}
+			}
+			for (Runnable request : requests) {
+				request.run();
+			}
+		}
+
+		private Runnable attachmentRequest(final int objectId, final int oid,
+				final AttachmentOp op) {
+			return new Runnable() {
+
+				@Override
+				public void run() {
+					if (op.type == ADD_ATTACHMENT) {
+						File file = new File(op.path);
+						if (!file.exists()) {
+							// it can never be sent, count it as rejected
+							Log.w(TAG, "attachment " + file + " is gone");
+							attachmentDone(objectId, op, false, null);
+							return;
+						}
+						mUploader.upload(mLayer, oid, file,
+								new CallbackListener<FeatureEditResult>() {
+
+									@Override
+									public void onCallback(
+											FeatureEditResult result) {
+										attachmentDone(objectId, op,
+												result.isSuccess(), null);
+									}
+
+									@Override
+									public void onError(Throwable e) {
+										attachmentDone(objectId, op, false, e);
+									}
+								});
+					} else {
+						mLayer.deleteAttachments(oid,
+								new int[] { op.attachmentId },
+								new CallbackListener<FeatureEditResult[]>() {
+
+									@Override
+									public void onCallback(
+											FeatureEditResult[] results) {
+										attachmentDone(objectId, op,
+												results != null
+														&& results.length > 0
+														&& results[0].isSuccess(),
+												null);
+									}
+
+									@Override
+									public void onError(Throwable e) {
+										attachmentDone(objectId, op, false, e);
+									}
+								});
+					}
+				}
+			};
+		}
+
+		void attachmentDone(int objectId, AttachmentOp op, boolean success,
+				Throwable error) {
+			synchronized (EditJournal.this) {
+				if (error != null) {
+					// send it again next time
+					Edit edit = new Edit(ATTACHMENTS);
+					edit.attachments.add(op);
+					mergeBack(mUrl, serverId(objectId), edit);
+					mError = error;
+				} else {
+					if (success)
+						mApplied++;
+					else
+						mRejected++;
+					attachmentSynced(mUrl, objectId, op.seq);
+				}
+				if (--mOutstanding == 0)
+					finish();
+			}
+		}
+
+		private int serverId(int objectId) {
+			Integer serverId = mServerIds.get(Integer.valueOf(objectId));
+			return serverId == null ? objectId : serverId.intValue();
+		}
+
+		void failed(Throwable e) {
+			synchronized (EditJournal.this) {
+				// put the edits back in front of those made since
+				for (Map.Entry<Integer, Edit> entry : mEdits.entrySet()) {
+					mergeBack(mUrl, entry.getKey().intValue(),
+							entry.getValue());
+				}
+				mEdits.clear();
+				mError = e;
+				finish();
+			}
+		}
+
+		// called with the journal locked
+		private void finish() {
+			mSyncing.remove(mUrl);
+			// features added in this run may have been edited meanwhile
+			LinkedHashMap<Integer, Edit> pending = mPending.get(mUrl);
+			if (pending != null) {
+				for (Map.Entry<Integer, Integer> ids : mServerIds.entrySet()) {
+					Edit edit = pending.remove(ids.getKey());
+					if (edit != null) {
+						if (edit.kind == ADD)
+							edit.kind = UPDATE;
+						merge(mUrl, ids.getValue().intValue(), edit);
+					}
+				}
+			}
+			if (mSyncing.isEmpty())
+				compact();
+			if (mListener == null)
+				return;
+			if (mError != null)
+				mListener.onSyncFailed(mLayer, mError);
+			else
+				mListener.onSynced(mLayer, mApplied, mRejected);
+		}
+	}
+
+	private void featureSynced(String layerUrl, int objectId, long seq,
+			int serverId) {
+		RecordBuffer records = new RecordBuffer();
+		try {
+			writeRecord(records.out, FEATURE_SYNCED, ++mSequence, layerUrl,
+					objectId);
+			records.out.writeLong(seq);
+			records.out.writeInt(serverId);
+			records.end();
+		} catch (IOException e) {
+			Log.w(TAG, "unable to journal sync", e);
+			return;
+		}
+		write(records);
+	}
+
+	private void attachmentSynced(String layerUrl, int objectId, long seq) {
+		RecordBuffer records = new RecordBuffer();
+		try {
+			writeRecord(records.out, ATTACHMENT_SYNCED, ++mSequence, layerUrl,
+					objectId);
+			records.out.writeLong(seq);
+			records.end();
+		} catch (IOException e) {
+			Log.w(TAG, "unable to journal sync", e);
+			return;
+		}
+		write(records);
+	}
+
+	/*
+	 * Rebuild the pending edits from the journal, leaving out what was
+	 * acknowledged. A record cut short by a crash ends the journal. A record
+	 * that fails its CRC ends it too, and the journal is kept aside as .bad
+	 * since the records after it are lost.
+	 */
+	private void replay() {
+		if (!mFile.exists())
+			return;
+		List<Record> records = new ArrayList<Record>();
+		// last feature record synced and server id, by layer and object id
+		Map<String, long[]> featureSynced = new HashMap<String, long[]>();
+		Set<Long> attachmentsSynced = new HashSet<Long>();
+		boolean corrupt = false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mFile)));
+			if (in.readInt() != MAGIC)
+				return;
+			int version = in.readInt();
+			if (version != 1 && version != VERSION)
+				return;
+			while (true) {
+				Record record;
+				if (version == 1) {
+					record = readRecord(in, version);
+				} else {
+					byte[] bytes = readFrame(in);
+					if (bytes == null) {
+						Log.w(TAG, "corrupt record in " + mFile);
+						corrupt = true;
+						break;
+					}
+					record = readRecord(new DataInputStream(
+							new ByteArrayInputStream(bytes)), version);
+				}
+				mSequence = Math.max(mSequence, record.seq);
+				if (record.objectId <= mNextTempId)
+					mNextTempId = record.objectId - 1;
+				if (record.type == FEATURE_SYNCED) {
+					featureSynced.put(record.key(), new long[] {
+							record.syncedSeq, record.serverId });
+				} else if (record.type == ATTACHMENT_SYNCED) {
+					attachmentsSynced.add(Long.valueOf(record.syncedSeq));
+				} else {
+					records.add(record);
+				}
+			}
+		} catch (EOFException e) {
+			// end of the journal
+		} catch (IOException e) {
+			Log.w(TAG, "unable to read " + mFile, e);
+			corrupt = true;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (corrupt) {
+			File bad = new File(mFile.getPath() + ".bad");
+			if (!mFile.renameTo(bad))
+				Log.w(TAG, "unable to keep " + mFile + " as " + bad);
+		}
+
+		for (Record record : records) {
+			long[] synced = featureSynced.get(record.key());
+			int objectId = record.objectId;
+			Edit edit = record.edit;
+			if (synced != null) {
+				// the feature was added under this id
+				objectId = (int) synced[1];
+				if (edit.seq <= synced[0]) {
+					edit.clearFeature();
+				} else if (edit.kind == ADD) {
+					edit.kind = UPDATE;
+				}
+			}
+			for (Iterator<AttachmentOp> it = edit.attachments.iterator(); it
+					.hasNext();) {
+				if (attachmentsSynced.contains(Long.valueOf(it.next().seq)))
+					it.remove();
+			}
+			if (edit.kind == ATTACHMENTS && edit.attachments.isEmpty())
+				continue;
+			merge(record.layerUrl, objectId, edit);
+		}
+	}
+
+	/*
+	 * Rewrite the journal with only the pending edits, or delete it when
+	 * there are none. Only done while nothing is being synced.
+	 */
+	private void compact() {
+		closeOutput();
+		if (mPending.isEmpty()) {
+			if (mFile.exists() && !mFile.delete())
+				Log.w(TAG, "unable to delete " + mFile);
+			return;
+		}
+		File tmp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		FileOutputStream fileOut = null;
+		try {
+			fileOut = new FileOutputStream(tmp);
+			out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Map.Entry<String, LinkedHashMap<Integer, Edit>> layer : mPending
+					.entrySet()) {
+				for (Map.Entry<Integer, Edit> entry : layer.getValue()
+						.entrySet()) {
+					String layerUrl = layer.getKey();
+					int objectId = entry.getKey().intValue();
+					Edit edit = entry.getValue();
+					RecordBuffer records = new RecordBuffer();
+					if (edit.kind != ATTACHMENTS) {
+						writeRecord(records.out, edit.kind, edit.seq,
+								layerUrl, objectId);
+						if (edit.kind != DELETE)
+							writeFeature(records.out, edit);
+						records.end();
+					}
+					for (AttachmentOp op : edit.attachments) {
+						writeAttachment(records.out, op, layerUrl, objectId);
+						records.end();
+					}
+					records.writeTo(out);
+				}
+			}
+			out.flush();
+			fileOut.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmp.renameTo(mFile))
+				Log.w(TAG, "unable to replace " + mFile);
+		} catch (IOException e) {
+			Log.w(TAG, "unable to compact " + mFile, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void openForAppend() throws IOException {
+		if (mOut != null)
+			return;
+		boolean exists = mFile.exists() && mFile.length() > 0;
+		mFileOut = new FileOutputStream(mFile, true);
+		mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+		if (!exists) {
+			mOut.writeInt(MAGIC);
+			mOut.writeInt(VERSION);
+		}
+	}
+
+	private void closeOutput() {
+		if (mOut == null)
+			return;
+		try {
+			mOut.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mOut = null;
+		mFileOut = null;
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, long seq,
+			String layerUrl, int objectId) throws IOException {
+		out.writeByte(type);
+		out.writeLong(seq);
+		out.writeUTF(layerUrl);
+		out.writeInt(objectId);
+	}
+
+	private static void writeAttachment(DataOutputStream out,
+			AttachmentOp op, String layerUrl, int objectId) throws IOException {
+		writeRecord(out, op.type, op.seq, layerUrl, objectId);
+		if (op.type == ADD_ATTACHMENT)
+			out.writeUTF(op.path);
+		else
+			out.writeInt(op.attachmentId);
+	}
+
+	private static void writeFeature(DataOutputStream out, Edit edit)
+			throws IOException {
+		out.writeInt(edit.attributes.size());
+		for (Map.Entry<String, Object> attribute : edit.attributes.entrySet()) {
+			out.writeUTF(attribute.getKey());
+			writeValue(out, attribute.getValue());
+		}
+		writeGeometry(out, edit.geometry);
+	}
+
+	/*
+	 * Read the next framed record.
+	 *
+	 * @return the record, or null if it fails its CRC
+	 */
+	private byte[] readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		int crc = in.readInt();
+		if (length < 0 || length > mFile.length())
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return crc == crc(bytes) ? bytes : null;
+	}
+
+	private static int crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return (int) crc.getValue();
+	}
+
+	private static Record readRecord(DataInputStream in, int version)
+			throws IOException {
+		Record record = new Record();
+		record.type = in.readByte();
+		record.seq = in.readLong();
+		record.layerUrl = in.readUTF();
+		record.objectId = in.readInt();
+		switch (record.type) {
+		case ADD:
+		case UPDATE:
+		case DELETE:
+			Edit edit = new Edit(record.type);
+			edit.seq = record.seq;
+			if (record.type != DELETE) {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String name = in.readUTF();
+					edit.attributes.put(name, readValue(in, version));
+				}
+				edit.geometry = readGeometry(in, version);
+			}
+			record.edit = edit;
+			break;
+		case ADD_ATTACHMENT:
+		case DELETE_ATTACHMENT:
+			AttachmentOp op = record.type == ADD_ATTACHMENT ? new AttachmentOp(
+					record.type, in.readUTF(), 0) : new AttachmentOp(
+					record.type, null, in.readInt());
+			op.seq = record.seq;
+			record.edit = new Edit(ATTACHMENTS);
+			record.edit.attachments.add(op);
+			break;
+		case FEATURE_SYNCED:
+			record.syncedSeq = in.readLong();
+			record.serverId = in.readInt();
+			break;
+		case ATTACHMENT_SYNCED:
+			record.syncedSeq = in.readLong();
+			break;
+		default:
+			throw new IOException("unknown record " + record.type);
+		}
+		return record;
+	}
+
+	private static void writeValue(DataOutputStream out, Object value)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt(((Integer) value).intValue());
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong(((Long) value).longValue());
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Double) value).doubleValue());
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat(((Float) value).floatValue());
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort(((Short) value).shortValue());
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean(((Boolean) value).booleanValue());
+		} else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	private static Object readValue(DataInputStream in, int version)
+			throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case INTEGER:
+			return Integer.valueOf(in.readInt());
+		case LONG:
+			return Long.valueOf(in.readLong());
+		case DOUBLE:
+			return Double.valueOf(in.readDouble());
+		case FLOAT:
+			return Float.valueOf(in.readFloat());
+		case SHORT:
+			return Short.valueOf(in.readShort());
+		case BOOLEAN:
+			return Boolean.valueOf(in.readBoolean());
+		case STRING:
+			return readString(in, version);
+		default:
+			throw new IOException("unknown value type " + type);
+		}
+	}
+
+	private static void writeGeometry(DataOutputStream out, Geometry geometry)
+			throws IOException {
+		if (geometry == null) {
+			out.writeByte(NO_GEOMETRY);
+		} else if (geometry instanceof Point) {
+			out.writeByte(POINT);
+			out.writeDouble(((Point) geometry).getX());
+			out.writeDouble(((Point) geometry).getY());
+		} else if (geometry instanceof Polyline || geometry instanceof Polygon) {
+			MultiPath multiPath = (MultiPath) geometry;
+			out.writeByte(geometry instanceof Polygon ? POLYGON : POLYLINE);
+			out.writeInt(multiPath.getPathCount());
+			for (int i = 0; i < multiPath.getPathCount(); i++) {
+				int start = multiPath.getPathStart(i);
+				int size = multiPath.getPathSize(i);
+				out.writeInt(size);
+				for (int j = start; j < start + size; j++) {
+					Point point = multiPath.getPoint(j);
+					out.writeDouble(point.getX());
+					out.writeDouble(point.getY());
+				}
+			}
+		} else {
+			out.writeByte(JSON);
+			writeString(out, GeometryEngine.geometryToJson(null, geometry));
+		}
+	}
+
+	private static Geometry readGeometry(DataInputStream in, int version)
+			throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NO_GEOMETRY:
+			return null;
+		case POINT:
+			return new Point(in.readDouble(), in.readDouble());
+		case POLYLINE:
+		case POLYGON:
+			MultiPath multiPath = type == POLYGON ? new Polygon()
+					: new Polyline();
+			int paths = in.readInt();
+			for (int i = 0; i < paths; i++) {
+				int size = in.readInt();
+				for (int j = 0; j < size; j++) {
+					double x = in.readDouble();
+					double y = in.readDouble();
+					if (j == 0)
+						multiPath.startPath(x, y);
+					else
+						multiPath.lineTo(x, y);
+				}
+			}
+			return multiPath;
+		case JSON:
+			JsonParser parser = new JsonFactory().createJsonParser(readString(
+					in, version));
+			parser.nextToken();
+			return GeometryEngine.jsonToGeometry(parser).getGeometry();
+		default:
+			throw new IOException("unknown geometry type " + type);
+		}
+	}
+
+	/*
+	 * Attribute values and geometry JSON can be longer than writeUTF allows.
+	 */
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in, int version)
+			throws IOException {
+		if (version == 1)
+			return in.readUTF();
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("bad string length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/*
+	 * Records serialized in memory, each framed by its length and CRC. They
+	 * are only written to the journal once all of them are complete.
+	 */
+	private static class RecordBuffer {
+		private final ByteArrayOutputStream mFrames = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+		// the record being written
+		final DataOutputStream out = new DataOutputStream(mRecord);
+
+		// frame the record written to out
+		void end() throws IOException {
+			out.flush();
+			byte[] bytes = mRecord.toByteArray();
+			mRecord.reset();
+			DataOutputStream frame = new DataOutputStream(mFrames);
+			frame.writeInt(bytes.length);
+			frame.writeInt(crc(bytes));
+			frame.write(bytes);
+			frame.flush();
+		}
+
+		void writeTo(OutputStream stream) throws IOException {
+			mFrames.writeTo(stream);
+		}
+	}
+
+	/*
+	 * The pending changes of one feature.
+	 */
+	private static class Edit {
+		byte kind;
+		// sequence number of the last feature record merged in
+		long seq;
+		Geometry geometry;
+		final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		final List<AttachmentOp> attachments = new ArrayList<AttachmentOp>();
+
+		Edit(byte kind) {
+			this.kind = kind;
+		}
+
+		// leave only the attachment changes
+		void clearFeature() {
+			kind = ATTACHMENTS;
+			geometry = null;
+			attributes.clear();
+		}
+
+		/*
+		 * Coalesce a newer edit of a feature into an older one.
+		 *
+		 * @return the combined edit, null if nothing is left to send
+		 */
+		static Edit merge(Edit older, Edit newer) {
+			if (older == null)
+				return newer;
+			if (newer.kind == DELETE) {
+				// a feature added and deleted before it was sent never existed
+				if (older.kind == ADD)
+					return null;
+				return newer;
+			}
+			if (older.kind == DELETE)
+				return older;
+			if (newer.kind != ATTACHMENTS) {
+				if (older.kind == ATTACHMENTS)
+					older.kind = newer.kind;
+				older.seq = newer.seq;
+				older.attributes.putAll(newer.attributes);
+				if (newer.geometry != null)
+					older.geometry = newer.geometry;
+			}
+			older.attachments.addAll(newer.attachments);
+			return older;
+		}
+	}
+
+	private static class AttachmentOp {
+		final byte type;
+		final String path;
+		final int attachmentId;
+		long seq;
+
+		AttachmentOp(byte type, String path, int attachmentId) {
+			this.type = type;
+			this.path = path;
+			this.attachmentId = attachmentId;
+		}
+	}
+
+	private static class Record {
+		byte type;
+		long seq;
+		String layerUrl;
+		int objectId;
+		Edit edit;
+		long syncedSeq;
+		int serverId;
+
+		String key() {
+			return layerUrl + "#" + objectId;
+		}
+	}
+}
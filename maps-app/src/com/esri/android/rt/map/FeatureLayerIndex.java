@@ -0,0 +1,304 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+import com.esri.android.map.ags.ArcGISFeatureLayer;
+import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.map.Graphic;
+
+/**
+ * Spatial index of the graphics of a feature layer for hit testing. The
+ * envelopes of the graphics are held in a {@link PackedRTree}. Graphics that
+ * appear after it was built go to an overflow list which is searched linearly
+ * and graphics that went away are tombstoned. The tree is packed again once
+ * the overflow passes a sixteenth or the tombstones a quarter of its size.
+ *
+ * A search only checks the graphic count and that a few known graphics are
+ * still there. All the ids are compared on a background thread a little while
+ * after the map moved, when layers in on demand mode fetch other features.
+ *
+ * Indexes are used from the identify threads, one at a time per layer.
+ */
+public class FeatureLayerIndex {
+
+	// the overflow and tombstones are always allowed this many entries
+	private static final int MIN_CHANGES = 64;
+
+	// known graphics a search checks are still there
+	private static final int PROBES = 8;
+
+	// wait for the features of the new extent before comparing ids
+	private static final long COMPARE_DELAY_MILLIS = 3000;
+
+	private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(new Runnable() {
+
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "FeatureLayerIndex");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private static ScheduledFuture<?> sCompare;
+
+	private static final Map<ArcGISFeatureLayer, FeatureLayerIndex> sIndexes = new WeakHashMap<ArcGISFeatureLayer, FeatureLayerIndex>();
+
+	private PackedRTree mTree;
+	// ids in the tree, sorted
+	private int[] mTreeIds = new int[0];
+	// tree ids no longer in the layer, sorted, mTombstoneCount used
+	private int[] mTombstones = new int[0];
+	private int mTombstoneCount;
+	// graphics added since the tree was built
+	private double[] mOverflowBoxes = new double[MIN_CHANGES * 4];
+	private int[] mOverflowIds = new int[MIN_CHANGES];
+	private int mOverflowCount;
+	// graphic count and a few ids of the layer when last synchronised
+	private int mGraphicCount = -1;
+	private int[] mProbeIds = new int[0];
+	private boolean mDirty = true;
+
+	private final Envelope mEnvelope = new Envelope();
+	private final int[][] mResults = new int[][] { new int[16] };
+
+	/**
+	 * @return the index of a layer, created on first use
+	 */
+	public static FeatureLayerIndex forLayer(ArcGISFeatureLayer layer) {
+		synchronized (sIndexes) {
+			FeatureLayerIndex index = sIndexes.get(layer);
+			if (index == null) {
+				index = new FeatureLayerIndex();
+				sIndexes.put(layer, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Mark a layer's index for rebuilding, e.g. after a feature was edited in
+	 * place which doesn't change the graphic ids.
+	 */
+	public static void invalidate(ArcGISFeatureLayer layer) {
+		synchronized (sIndexes) {
+			FeatureLayerIndex index = sIndexes.get(layer);
+			if (index != null)
+				index.mDirty = true;
+		}
+	}
+
+	/**
+	 * Compare the ids of every indexed layer with its graphics a little while
+	 * after the map stopped moving, moving the cost of noticing refetched
+	 * features off the next tap. Call from the UI thread.
+	 */
+	public static void mapMoved() {
+		if (sCompare != null)
+			sCompare.cancel(false);
+		sCompare = EXECUTOR.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				List<ArcGISFeatureLayer> layers;
+				List<FeatureLayerIndex> indexes;
+				synchronized (sIndexes) {
+					layers = new ArrayList<ArcGISFeatureLayer>(sIndexes.keySet());
+					indexes = new ArrayList<FeatureLayerIndex>(sIndexes.values());
+				}
+				for (int i = 0; i < layers.size(); i++) {
+					FeatureLayerIndex index = indexes.get(i);
+					synchronized (index) {
+						index.sync(layers.get(i), true);
+					}
+				}
+			}
+		}, COMPARE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Find the graphics whose envelopes intersect a rectangle in map
+	 * coordinates, bringing the index up to date with the layer first.
+	 *
+	 * @return ids of the graphics found
+	 */
+	public synchronized int[] search(ArcGISFeatureLayer layer, double xmin,
+			double ymin, double xmax, double ymax) {
+		sync(layer, false);
+		int found = mTree.search(xmin, ymin, xmax, ymax, mResults);
+		int[] out = mResults[0];
+		int kept = 0;
+		for (int i = 0; i < found; i++) {
+			if (Arrays.binarySearch(mTombstones, 0, mTombstoneCount, out[i]) < 0)
+				out[kept++] = out[i];
+		}
+		int[] ids = new int[kept + mOverflowCount];
+		System.arraycopy(out, 0, ids, 0, kept);
+		for (int i = 0; i < mOverflowCount; i++) {
+			if (mOverflowBoxes[i * 4] <= xmax && mOverflowBoxes[i * 4 + 1] <= ymax
+					&& mOverflowBoxes[i * 4 + 2] >= xmin
+					&& mOverflowBoxes[i * 4 + 3] >= ymin)
+				ids[kept++] = mOverflowIds[i];
+		}
+		return kept == ids.length ? ids : Arrays.copyOf(ids, kept);
+	}
+
+	/*
+	 * Bring the index up to date when the graphics of the layer changed or it
+	 * was invalidated. Without compareIds a change is only noticed when the
+	 * graphic count differs or a probed graphic is gone, which costs a few
+	 * lookups; a layer that refetches its features on pan can replace them
+	 * with as many others, so mapMoved compares all the ids later.
+	 */
+	private void sync(ArcGISFeatureLayer layer, boolean compareIds) {
+		if (!mDirty && !compareIds && mTree != null
+				&& layer.getNumberOfGraphics() == mGraphicCount
+				&& probesPresent(layer))
+			return;
+		int[] ids = layer.getGraphicIDs();
+		if (ids == null)
+			ids = new int[0];
+		ids = ids.clone();
+		Arrays.sort(ids);
+
+		if (mDirty || mTree == null) {
+			rebuild(layer, ids);
+		} else {
+			// tombstone tree ids that are gone
+			int known = mTombstoneCount;
+			int[] tombstones = Arrays.copyOf(mTombstones, known
+					+ mTreeIds.length);
+			for (int id : mTreeIds) {
+				if (Arrays.binarySearch(ids, id) < 0
+						&& Arrays.binarySearch(tombstones, 0, known, id) < 0)
+					tombstones[mTombstoneCount++] = id;
+			}
+			Arrays.sort(tombstones, 0, mTombstoneCount);
+			mTombstones = tombstones;
+			// drop overflow ids that are gone
+			int kept = 0;
+			for (int i = 0; i < mOverflowCount; i++) {
+				if (Arrays.binarySearch(ids, mOverflowIds[i]) >= 0) {
+					mOverflowIds[kept] = mOverflowIds[i];
+					System.arraycopy(mOverflowBoxes, i * 4, mOverflowBoxes,
+							kept * 4, 4);
+					kept++;
+				}
+			}
+			mOverflowCount = kept;
+			// add new ids, and tombstoned ids that are back, to the overflow
+			int[] overflow = Arrays.copyOf(mOverflowIds, mOverflowCount);
+			Arrays.sort(overflow);
+			for (int id : ids) {
+				if ((Arrays.binarySearch(mTreeIds, id) < 0 || Arrays
+						.binarySearch(mTombstones, 0, mTombstoneCount, id) >= 0)
+						&& Arrays.binarySearch(overflow, id) < 0) {
+					addOverflow(layer, id);
+				}
+			}
+			if (mOverflowCount > Math.max(MIN_CHANGES, mTree.size() / 16)
+					|| mTombstoneCount > Math.max(MIN_CHANGES,
+							mTree.size() / 4))
+				rebuild(layer, ids);
+		}
+		mGraphicCount = ids.length;
+		mProbeIds = new int[Math.min(PROBES, ids.length)];
+		for (int i = 0; i < mProbeIds.length; i++)
+			mProbeIds[i] = ids[(int) ((long) i * ids.length / mProbeIds.length)];
+		mDirty = false;
+	}
+
+	private boolean probesPresent(ArcGISFeatureLayer layer) {
+		for (int id : mProbeIds) {
+			if (layer.getGraphic(id) == null)
+				return false;
+		}
+		return true;
+	}
+
+	private void rebuild(ArcGISFeatureLayer layer, int[] sortedIds) {
+		double[] boxes = new double[sortedIds.length * 4];
+		int[] ids = new int[sortedIds.length];
+		int n = 0;
+		for (int id : sortedIds) {
+			if (queryEnvelope(layer, id)) {
+				boxes[n * 4] = mEnvelope.getXMin();
+				boxes[n * 4 + 1] = mEnvelope.getYMin();
+				boxes[n * 4 + 2] = mEnvelope.getXMax();
+				boxes[n * 4 + 3] = mEnvelope.getYMax();
+				ids[n++] = id;
+			}
+		}
+		mTree = new PackedRTree(boxes, ids, n);
+		mTreeIds = Arrays.copyOf(ids, n);
+		Arrays.sort(mTreeIds);
+		mTombstoneCount = 0;
+		mOverflowCount = 0;
+	}
+
+	private boolean queryEnvelope(ArcGISFeatureLayer layer, int id) {
+		Graphic graphic = layer.getGraphic(id);
+		Geometry geometry = graphic == null ? null : graphic.getGeometry();
+		if (geometry == null || geometry.isEmpty())
+			return false;
+		geometry.queryEnvelope(mEnvelope);
+		return true;
+	}
+
+	private void addOverflow(ArcGISFeatureLayer layer, int id) {
+		if (!queryEnvelope(layer, id))
+			return;
+		if (mOverflowCount == mOverflowIds.length) {
+			mOverflowIds = Arrays.copyOf(mOverflowIds, mOverflowCount * 2);
+			mOverflowBoxes = Arrays.copyOf(mOverflowBoxes, mOverflowCount * 8);
+		}
+		mOverflowBoxes[mOverflowCount * 4] = mEnvelope.getXMin();
+		mOverflowBoxes[mOverflowCount * 4 + 1] = mEnvelope.getYMin();
+		mOverflowBoxes[mOverflowCount * 4 + 2] = mEnvelope.getXMax();
+		mOverflowBoxes[mOverflowCount * 4 + 3] = mEnvelope.getYMax();
+		mOverflowIds[mOverflowCount++] = id;
+	}
+}
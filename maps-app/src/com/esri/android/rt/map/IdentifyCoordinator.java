@@ -0,0 +1,204 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.esri.android.map.Layer;
+import com.esri.core.map.Graphic;
+
+/**
+ * Runs the identify queries of a tap. Only a few queries run at once, the
+ * layers drawn on top are queried first, and a new tap cancels every query of
+ * the previous one that hasn't finished. Each result is handed to the callback
+ * on the UI thread as soon as it arrives.
+ */
+public class IdentifyCoordinator {
+
+	private static final String TAG = "IdentifyCoordinator";
+
+	// queries running at once
+	private static final int MAX_IN_FLIGHT = 3;
+
+	private static final ThreadPoolExecutor EXECUTOR;
+	static {
+		EXECUTOR = new ThreadPoolExecutor(MAX_IN_FLIGHT, MAX_IN_FLIGHT, 30,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, TAG);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	// submission order, breaks priority ties first come first served
+	private static final AtomicLong sSequence = new AtomicLong();
+
+	/**
+	 * A query of a layer or of several sub-layers of a service, run on a
+	 * background thread.
+	 */
+	public interface Identify {
+		/**
+		 * @return the features found by sub-layer id, in the order they
+		 *         should be shown
+		 */
+		Map<Integer, Graphic[]> identify() throws Exception;
+	}
+
+	public interface Callback {
+		/**
+		 * Called on the UI thread with the features a query found in a
+		 * sub-layer.
+		 */
+		void onResult(Layer layer, int subLayerId, Graphic[] graphics);
+	}
+
+	private final Callback mCallback;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final List<QueryFuture> mPending = new ArrayList<QueryFuture>();
+	private int mGeneration;
+
+	public IdentifyCoordinator(Callback callback) {
+		mCallback = callback;
+	}
+
+	/**
+	 * Start a new tap, cancelling the queries of the previous one. Call from
+	 * the UI thread.
+	 */
+	public void begin() {
+		cancel();
+		mGeneration++;
+	}
+
+	/**
+	 * Queue a query of the current tap. Call from the UI thread.
+	 *
+	 * @param priority
+	 *            higher priorities run first, e.g. the drawing order of the
+	 *            layer
+	 */
+	public void submit(int priority, Layer layer, Identify identify) {
+		QueryFuture task = new QueryFuture(mGeneration, priority, layer,
+				identify);
+		mPending.add(task);
+		EXECUTOR.execute(task);
+	}
+
+	/**
+	 * Cancel all queries that haven't finished.
+	 */
+	public void cancel() {
+		for (QueryFuture task : mPending) {
+			task.cancel(true);
+			EXECUTOR.remove(task);
+		}
+		mPending.clear();
+	}
+
+	private class QueryFuture extends FutureTask<Map<Integer, Graphic[]>> implements
+			Comparable<QueryFuture> {
+
+		private final int mTaskGeneration;
+		private final int mPriority;
+		private final long mSequence = sSequence.getAndIncrement();
+		private final Layer mLayer;
+
+		QueryFuture(int generation, int priority, Layer layer,
+				final Identify identify) {
+			super(new Callable<Map<Integer, Graphic[]>>() {
+
+				@Override
+				public Map<Integer, Graphic[]> call() throws Exception {
+					return identify.identify();
+				}
+			});
+			mTaskGeneration = generation;
+			mPriority = priority;
+			mLayer = layer;
+		}
+
+		@Override
+		public int compareTo(QueryFuture other) {
+			if (mPriority != other.mPriority)
+				return mPriority > other.mPriority ? -1 : 1;
+			return mSequence < other.mSequence ? -1
+					: mSequence == other.mSequence ? 0 : 1;
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled())
+				return;
+			mHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					mPending.remove(QueryFuture.this);
+					// drop results of a tap that has been superseded
+					if (mTaskGeneration != mGeneration)
+						return;
+					try {
+						Map<Integer, Graphic[]> results = get();
+						if (results == null)
+							return;
+						for (Entry<Integer, Graphic[]> result : results
+								.entrySet()) {
+							Graphic[] graphics = result.getValue();
+							if (graphics != null && graphics.length > 0)
+								mCallback.onResult(mLayer, result.getKey()
+										.intValue(), graphics);
+						}
+					} catch (ExecutionException e) {
+						Log.w(TAG, "identify failed", e.getCause());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+	}
+}
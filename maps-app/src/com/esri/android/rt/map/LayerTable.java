@@ -0,0 +1,402 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.esri.android.map.GroupLayer;
+import com.esri.android.map.Layer;
+import com.esri.android.map.ags.ArcGISDynamicMapServiceLayer;
+import com.esri.android.map.ags.ArcGISFeatureLayer;
+import com.esri.android.map.ags.ArcGISLayerInfo;
+import com.esri.android.map.ags.ArcGISTiledMapServiceLayer;
+import com.esri.core.map.popup.PopupFieldInfo;
+import com.esri.core.map.popup.PopupInfo;
+
+/**
+ * Flattened table of the layers a tap can query: feature layers and the
+ * visible leaf sub-layers of map services that have a popup definition. Each
+ * entry holds its layer, sub-layer id, query url, popup definition, the fields
+ * the popup shows, scale range and query priority in parallel arrays. Entries
+ * of the same map service are adjacent, the one drawn on top first.
+ *
+ * The table is rebuilt when layers are added, removed, initialized or change
+ * visibility, and the entries in scale range are filtered again when the map
+ * scale changes.
+ */
+public class LayerTable {
+
+	public static final int KIND_FEATURE_LAYER = 0;
+	public static final int KIND_SUB_LAYER = 1;
+
+	// query priority of each layer, layers drawn later are queried first
+	static final int LAYER_PRIORITY = 1000;
+
+	// layers of the map and their state when the table was built
+	private Layer[] mLayers = new Layer[0];
+	private long[] mLayerStates = new long[0];
+
+	private int mCount;
+	private byte[] mKinds = new byte[16];
+	private Layer[] mOwners = new Layer[16];
+	private int[] mSubLayerIds = new int[16];
+	private String[] mQueryUrls = new String[16];
+	private PopupInfo[] mPopupInfos = new PopupInfo[16];
+	private String[][] mOutFields = new String[16][];
+	private int[] mFieldCounts = new int[16];
+	private double[] mMinScales = new double[16];
+	private double[] mMaxScales = new double[16];
+	private int[] mPriorities = new int[16];
+
+	// entries in scale range at mScale
+	private int[] mEligible = new int[16];
+	private int mEligibleCount = -1;
+	private double mScale;
+
+	/**
+	 * Bring the table up to date with the layers of a map.
+	 *
+	 * @return true if the table was rebuilt
+	 */
+	public boolean update(Layer[] layers) {
+		if (layers == null)
+			layers = new Layer[0];
+		if (!changed(layers))
+			return false;
+		mLayers = layers.clone();
+		mLayerStates = new long[layers.length];
+		mCount = 0;
+		mEligibleCount = -1;
+		for (int i = 0; i < layers.length; i++) {
+			Layer layer = layers[i];
+			mLayerStates[i] = state(layer);
+			// Layers not initialized or invisible are not queried
+			if (mLayerStates[i] == 0)
+				continue;
+			int priority = i * LAYER_PRIORITY;
+			if (layer instanceof GroupLayer) {
+				Layer[] sublayers = ((GroupLayer) layer).getLayers();
+				if (sublayers != null) {
+					for (int j = 0; j < sublayers.length; j++) {
+						if (sublayers[j] instanceof ArcGISFeatureLayer)
+							addFeatureLayer((ArcGISFeatureLayer) sublayers[j],
+									priority + j);
+					}
+				}
+			} else if (layer instanceof ArcGISFeatureLayer) {
+				addFeatureLayer((ArcGISFeatureLayer) layer, priority);
+			} else if (layer instanceof ArcGISDynamicMapServiceLayer
+					|| layer instanceof ArcGISTiledMapServiceLayer) {
+				ArcGISLayerInfo[] layerinfos = getAllLayers(layer);
+				if (layerinfos == null)
+					continue;
+				// the first sub-layer is drawn on top
+				for (int j = 0; j < layerinfos.length; j++) {
+					ArcGISLayerInfo[] children = layerinfos[j].getLayers();
+					if (children != null && children.length > 0)
+						continue;
+					addSubLayer(layer, layerinfos[j], priority + LAYER_PRIORITY
+							- 1 - j);
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * A layer was added, removed, initialized or shown or hidden, or one of
+	 * the sub-layers of a map service was shown or hidden.
+	 */
+	private boolean changed(Layer[] layers) {
+		if (layers.length != mLayers.length)
+			return true;
+		for (int i = 0; i < layers.length; i++) {
+			if (layers[i] != mLayers[i] || state(layers[i]) != mLayerStates[i])
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * 0 for a layer that isn't queried, else a hash of the visibility of its
+	 * sub-layers which is never 0.
+	 */
+	private static long state(Layer layer) {
+		if (!layer.isInitialized() || !layer.isVisible())
+			return 0;
+		long state = 1;
+		ArcGISLayerInfo[] layerinfos = getAllLayers(layer);
+		if (layerinfos != null) {
+			for (ArcGISLayerInfo layerinfo : layerinfos)
+				state = state * 31 + (layerinfo.isVisible() ? 1 : 2);
+		}
+		return state == 0 ? 1 : state;
+	}
+
+	private static ArcGISLayerInfo[] getAllLayers(Layer layer) {
+		if (layer instanceof ArcGISDynamicMapServiceLayer)
+			return ((ArcGISDynamicMapServiceLayer) layer).getAllLayers();
+		if (layer instanceof ArcGISTiledMapServiceLayer)
+			return ((ArcGISTiledMapServiceLayer) layer).getAllLayers();
+		return null;
+	}
+
+	private void addFeatureLayer(ArcGISFeatureLayer featureLayer, int priority) {
+		PopupInfo popupInfo = featureLayer.getPopupInfo();
+		if (popupInfo == null)
+			return;
+		add(KIND_FEATURE_LAYER, featureLayer, 0, null, popupInfo,
+				featureLayer.getObjectIdField(), featureLayer.getMinScale(),
+				featureLayer.getMaxScale(), priority);
+	}
+
+	private void addSubLayer(Layer layer, ArcGISLayerInfo layerInfo,
+			int priority) {
+		int subLayerId = layerInfo.getId();
+		PopupInfo popupInfo = layer.getPopupInfo(subLayerId);
+		if (popupInfo == null || !hasVisibleParents(layerInfo))
+			return;
+		String queryUrl = layer.getQueryUrl(subLayerId);
+		if (queryUrl == null || queryUrl.length() < 1)
+			queryUrl = layer.getUrl() + "/" + subLayerId;
+		add(KIND_SUB_LAYER, layer, subLayerId, queryUrl, popupInfo,
+				objectIdField(popupInfo), layerInfo.getMinScale(),
+				layerInfo.getMaxScale(), priority);
+	}
+
+	private static boolean hasVisibleParents(ArcGISLayerInfo layerInfo) {
+		ArcGISLayerInfo info = layerInfo;
+		while (info != null && info.isVisible())
+			info = info.getParentLayer();
+		return info == null;
+	}
+
+	private void add(int kind, Layer owner, int subLayerId, String queryUrl,
+			PopupInfo popupInfo, String objectIdField, double layerMinScale,
+			double layerMaxScale, int priority) {
+		if (mCount == mKinds.length)
+			grow();
+		mKinds[mCount] = (byte) kind;
+		mOwners[mCount] = owner;
+		mSubLayerIds[mCount] = subLayerId;
+		mQueryUrls[mCount] = queryUrl;
+		mPopupInfos[mCount] = popupInfo;
+		mOutFields[mCount] = outFields(popupInfo, objectIdField);
+		PopupFieldInfo[] fieldInfos = popupInfo.getFieldInfos();
+		mFieldCounts[mCount] = fieldInfos == null ? 0 : fieldInfos.length;
+		// the layer's scale range, or the popup's where the layer has none
+		mMinScales[mCount] = layerMinScale != 0 ? layerMinScale : popupInfo
+				.getMinScale();
+		mMaxScales[mCount] = layerMaxScale != 0 ? layerMaxScale : popupInfo
+				.getMaxScale();
+		mPriorities[mCount] = priority;
+		mCount++;
+	}
+
+	private void grow() {
+		int size = mKinds.length * 2;
+		byte[] kinds = new byte[size];
+		System.arraycopy(mKinds, 0, kinds, 0, mCount);
+		mKinds = kinds;
+		Layer[] owners = new Layer[size];
+		System.arraycopy(mOwners, 0, owners, 0, mCount);
+		mOwners = owners;
+		int[] subLayerIds = new int[size];
+		System.arraycopy(mSubLayerIds, 0, subLayerIds, 0, mCount);
+		mSubLayerIds = subLayerIds;
+		String[] queryUrls = new String[size];
+		System.arraycopy(mQueryUrls, 0, queryUrls, 0, mCount);
+		mQueryUrls = queryUrls;
+		PopupInfo[] popupInfos = new PopupInfo[size];
+		System.arraycopy(mPopupInfos, 0, popupInfos, 0, mCount);
+		mPopupInfos = popupInfos;
+		String[][] outFields = new String[size][];
+		System.arraycopy(mOutFields, 0, outFields, 0, mCount);
+		mOutFields = outFields;
+		int[] fieldCounts = new int[size];
+		System.arraycopy(mFieldCounts, 0, fieldCounts, 0, mCount);
+		mFieldCounts = fieldCounts;
+		double[] minScales = new double[size];
+		System.arraycopy(mMinScales, 0, minScales, 0, mCount);
+		mMinScales = minScales;
+		double[] maxScales = new double[size];
+		System.arraycopy(mMaxScales, 0, maxScales, 0, mCount);
+		mMaxScales = maxScales;
+		int[] priorities = new int[size];
+		System.arraycopy(mPriorities, 0, priorities, 0, mCount);
+		mPriorities = priorities;
+		mEligible = new int[size];
+	}
+
+	/*
+	 * The object id field of a map service sub-layer, found among the fields
+	 * of its popup by the names ArcGIS gives it. Null when there is none.
+	 */
+	static String objectIdField(PopupInfo popupInfo) {
+		PopupFieldInfo[] fieldInfos = popupInfo.getFieldInfos();
+		if (fieldInfos == null)
+			return null;
+		for (PopupFieldInfo fieldInfo : fieldInfos) {
+			String name = fieldInfo.getFieldName();
+			if ("OBJECTID".equalsIgnoreCase(name)
+					|| "FID".equalsIgnoreCase(name)
+					|| "OID".equalsIgnoreCase(name))
+				return name;
+		}
+		return null;
+	}
+
+	/*
+	 * The fields a popup shows: the object id, its visible fields and the
+	 * fields its title and description refer to as {name}. Null for all
+	 * fields when the popup doesn't list its fields or the object id field is
+	 * unknown.
+	 */
+	static String[] outFields(PopupInfo popupInfo, String objectIdField) {
+		PopupFieldInfo[] fieldInfos = popupInfo.getFieldInfos();
+		if (fieldInfos == null || fieldInfos.length == 0
+				|| objectIdField == null)
+			return null;
+		Set<String> names = new HashSet<String>();
+		Set<String> fields = new LinkedHashSet<String>();
+		fields.add(objectIdField);
+		for (PopupFieldInfo fieldInfo : fieldInfos) {
+			if (fieldInfo.getFieldName() == null)
+				continue;
+			names.add(fieldInfo.getFieldName());
+			if (fieldInfo.isVisible())
+				fields.add(fieldInfo.getFieldName());
+		}
+		addTokens(popupInfo.getTitle(), names, fields);
+		addTokens(popupInfo.getDescription(), names, fields);
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/*
+	 * Add the {name} tokens of a text that are fields of the popup. Other
+	 * braces, e.g. of inline CSS or script in the description, are skipped.
+	 */
+	private static void addTokens(String text, Set<String> names,
+			Set<String> fields) {
+		if (text == null)
+			return;
+		int open = text.indexOf('{');
+		while (open >= 0) {
+			int close = text.indexOf('}', open + 1);
+			if (close < 0)
+				break;
+			String name = text.substring(open + 1, close).trim();
+			if (names.contains(name))
+				fields.add(name);
+			open = text.indexOf('{', close + 1);
+		}
+	}
+
+	/**
+	 * Find the entries in scale range, reusing the last result while the
+	 * scale is unchanged.
+	 *
+	 * @return number of entries, whose indexes are read with
+	 *         {@link #getEligible(int)}
+	 */
+	public int filter(double scale) {
+		if (mEligibleCount >= 0 && scale == mScale)
+			return mEligibleCount;
+		int n = 0;
+		for (int i = 0; i < mCount; i++) {
+			if ((mMaxScales[i] == 0 || scale > mMaxScales[i])
+					&& (mMinScales[i] == 0 || scale < mMinScales[i]))
+				mEligible[n++] = i;
+		}
+		mScale = scale;
+		mEligibleCount = n;
+		return n;
+	}
+
+	public int getEligible(int i) {
+		return mEligible[i];
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public int getKind(int entry) {
+		return mKinds[entry];
+	}
+
+	/**
+	 * @return the feature layer or map service layer of an entry
+	 */
+	public Layer getLayer(int entry) {
+		return mOwners[entry];
+	}
+
+	public int getSubLayerId(int entry) {
+		return mSubLayerIds[entry];
+	}
+
+	/**
+	 * @return url of the sub-layer's query endpoint, null for feature layers
+	 */
+	public String getQueryUrl(int entry) {
+		return mQueryUrls[entry];
+	}
+
+	public PopupInfo getPopupInfo(int entry) {
+		return mPopupInfos[entry];
+	}
+
+	/**
+	 * @return the fields to request for the popup of an entry, null for all
+	 */
+	public String[] getOutFields(int entry) {
+		return mOutFields[entry];
+	}
+
+	/**
+	 * @return the number of fields in the popup definition of an entry
+	 */
+	public int getFieldCount(int entry) {
+		return mFieldCounts[entry];
+	}
+
+	/**
+	 * @return the entry of a layer or sub-layer, -1 if it isn't in the table
+	 */
+	public int find(Layer layer, int subLayerId) {
+		for (int i = 0; i < mCount; i++) {
+			if (mOwners[i] == layer && mSubLayerIds[i] == subLayerId)
+				return i;
+		}
+		return -1;
+	}
+
+	public int getPriority(int entry) {
+		return mPriorities[entry];
+	}
+}
@@ -25,20 +25,26 @@
 package com.esri.android.rt.map;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import android.app.ProgressDialog;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.location.Location;
 import android.location.LocationListener;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
@@ -54,25 +60,36 @@ import android.widget.Toast;
 
 import com.arcgis.android.app.map.R;
 import com.esri.android.map.GraphicsLayer;
-import com.esri.android.map.LocationService;
+import com.esri.android.map.GroupLayer;
+import com.esri.android.map.Layer;
 import com.esri.android.map.MapView;
 import com.esri.android.map.ags.ArcGISFeatureLayer;
 import com.esri.android.map.event.OnLongPressListener;
+import com.esri.android.map.event.OnPanListener;
 import com.esri.android.map.event.OnStatusChangedListener;
+import com.esri.android.map.event.OnZoomListener;
 import com.esri.android.map.popup.Popup;
+import com.esri.android.rt.location.CompactRoute;
 import com.esri.android.rt.location.DirectionsActivity;
+import com.esri.android.rt.location.GeocodeCache;
+import com.esri.android.rt.location.GeocodeProvider;
+import com.esri.android.rt.location.LocationScheduler;
 import com.esri.android.rt.location.ReverseGeocoding;
+import com.esri.android.rt.location.RouteCache;
+import com.esri.android.rt.location.RoutePipeline;
+import com.esri.android.rt.location.RoutePyramid;
+import com.esri.android.rt.location.RouteTracker;
+import com.esri.android.rt.location.ServiceRegistry;
+import com.esri.android.rt.location.TrackRecorder;
+import com.esri.android.rt.location.WebMercator;
 import com.esri.android.rt.map.PopupFragment.OnEditListener;
 import com.esri.core.geometry.Envelope;
 import com.esri.core.geometry.Geometry;
-import com.esri.core.geometry.GeometryEngine;
 import com.esri.core.geometry.LinearUnit;
 import com.esri.core.geometry.Point;
 import com.esri.core.geometry.Polyline;
 import com.esri.core.geometry.SpatialReference;
 import com.esri.core.geometry.Unit;
-import com.esri.core.map.CallbackListener;
-import com.esri.core.map.FeatureEditResult;
 import com.esri.core.map.Graphic;
 import com.esri.core.portal.Portal;
 import com.esri.core.portal.PortalGroup;
@@ -83,24 +100,20 @@ import com.esri.core.portal.PortalQueryParams;
 import com.esri.core.portal.PortalQueryParams.PortalQuerySortOrder;
 import com.esri.core.portal.PortalQueryResultSet;
 import com.esri.core.symbol.PictureMarkerSymbol;
+import com.esri.core.symbol.SimpleLineSymbol;
 import com.esri.core.symbol.SimpleMarkerSymbol;
 import com.esri.core.symbol.TextSymbol;
-import com.esri.core.tasks.geocode.Locator;
 import com.esri.core.tasks.geocode.LocatorFindParameters;
 import com.esri.core.tasks.geocode.LocatorGeocodeResult;
-import com.esri.core.tasks.na.NAFeaturesAsFeature;
-import com.esri.core.tasks.na.Route;
-import com.esri.core.tasks.na.RouteParameters;
-import com.esri.core.tasks.na.RouteResult;
-import com.esri.core.tasks.na.RouteTask;
-import com.esri.core.tasks.na.StopGraphic;
 
 /**
  * Entry point into the Maps App.
  * 
  */
 
-public class MapsApp extends FragmentActivity implements OnEditListener {
+public class MapsApp extends FragmentActivity implements OnEditListener, SearchSuggestions.Listener {
+  private static final String TAG = "MapsApp";
+
   // map definitions
   MapView mMapView = null;
 
@@ -110,7 +123,6 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
   int basemap;
 
   // Geocoding definitions
-  Locator locator;
   LocatorGeocodeResult geocodeResult;
   GeocoderTask mGeocode;
   // graphics layer to show geocode result
@@ -118,35 +130,54 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
   // GPS Location definitions
   Point mLocation = null;
+  // requests fixes as often as searching or navigating needs them
+  LocationScheduler mLocationScheduler;
+  // graphics layer to show the device location
+  GraphicsLayer positionLayer;
+  int positionGraphicId = -1;
+  // breadcrumb trail of where the device has been today
+  final static long TRACK_REDRAW_INTERVAL = 5000;
+  TrackRecorder mTrackRecorder;
+  GraphicsLayer trackLayer;
+  int trackGraphicId = -1;
+  long trackDrawn;
   // The circle area specified by search_radius and input lat/lon serves
   // searching purpose. It is also used to construct the extent which
   // map zooms to after the first GPS fix is retrieved.
   final static double SEARCH_RADIUS = 10;
 
   // Spatial references used for projecting points
-  final SpatialReference wm = SpatialReference.create(102100);
-  final SpatialReference egs = SpatialReference.create(4326);
+  final SpatialReference wm = WebMercator.WEB_MERCATOR;
+  final SpatialReference egs = WebMercator.WGS84;
 
   // create UI components
   static ProgressDialog mProgressDialog;
   // Edit text box for entering search items
   EditText searchText;
+  // as you type suggestions for the search box
+  SearchSuggestions mSuggestions;
 
   GridView gridView;
   BasemapsAdapter bAdapter;
   ArrayList<BasemapItem> itemDataList;
   Portal portal;
   PortalQueryResultSet<PortalItem> queryResultSet;
+  // basemap items found by the first search of this session
+  static List<PortalItem> sBasemapPortalItems;
 
-  // Strings for routing
-  String startText;
-  String endText;
+  // Strings for routing, start first and destination last
+  String[] routeStops;
   Point routePnt;
-  // routing result definition
-  RouteResult routeResult;
   // route definition
-  Route route;
-  RouteTask routeTask;
+  CompactRoute route;
+  // simplified route geometries, the level drawn follows the zoom
+  RoutePyramid routePyramid;
+  int routeGraphicId = -1;
+  int routeLevel;
+  // navigation follows the device along a route that starts at its location
+  boolean navigating;
+  RouteTracker routeTracker;
+  boolean rerouting;
   String routeSummary;
   // graphics layer to show routes
   GraphicsLayer routeLayer;
@@ -154,6 +185,16 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
   // bundle to get routing parameters back to UI
   Bundle extras;
 
+  // sends journalled edits when the device comes online
+  final EditSyncListener mEditSyncListener = new EditSyncListener();
+  final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      syncEdits();
+    }
+  };
+
   /** Called when the activity is first created. */
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -167,6 +208,31 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
     // setContentView(mMapView);
     setMapView(mMapView);
 
+    // create the geocode and route clients while the map loads
+    ServiceRegistry.getInstance(this).warmUp();
+
+    // report when queued attachments have been uploaded
+    AttachmentUploader.getInstance(this).setProgressListener(new AttachmentUploader.ProgressListener() {
+
+      @Override
+      public void onProgress(final int succeeded, final int failed, final int total, final long bytes,
+          final long bytesPerSecond) {
+        if (succeeded + failed < total)
+          return;
+        runOnUiThread(new Runnable() {
+
+          @Override
+          public void run() {
+            String message = "Uploaded " + succeeded + " of " + total + " attachments, " + bytes / 1024 + " KB at "
+                + bytesPerSecond / 1024 + " KB/s";
+            if (failed > 0)
+              message += ", " + failed + " failed";
+            Toast.makeText(MapsApp.this, message, Toast.LENGTH_SHORT).show();
+          }
+        });
+      }
+    });
+
     // setup progress dialog
     mProgressDialog = new ProgressDialog(this) {
       public void onBackPressed() {
@@ -190,25 +256,30 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
         if (source == mMapView && status == STATUS.INITIALIZED) {
           // add search and routing layers
           addGraphicLayers();
-          // start location service
-          LocationService ls = mMapView.getLocationService();
-          ls.setAutoPan(false);
-          ls.setLocationListener(new LocationListener() {
+          openTrack();
+          // start location updates
+          mLocationScheduler = new LocationScheduler(MapsApp.this, new LocationListener() {
 
             boolean locationChanged = false;
+            // projected fix, reused for every fix
+            final double[] fix = new double[2];
 
             // Zooms to the current location when first GPS fix
             // arrives.
             @Override
             public void onLocationChanged(Location loc) {
+              // keep the device location current for searching and routing
+              double locy = loc.getLatitude();
+              double locx = loc.getLongitude();
+              WebMercator.project(locx, locy, egs, mMapView.getSpatialReference(), fix);
+              if (mLocation == null) {
+                mLocation = new Point(fix[0], fix[1]);
+              } else {
+                mLocation.setXY(fix[0], fix[1]);
+              }
+
               if (!locationChanged) {
                 locationChanged = true;
-                double locy = loc.getLatitude();
-                double locx = loc.getLongitude();
-                Point wgspoint = new Point(locx, locy);
-                mLocation = (Point) GeometryEngine.project(wgspoint, SpatialReference.create(4326),
-                    mMapView.getSpatialReference());
-
                 Unit mapUnit = mMapView.getSpatialReference().getUnit();
                 double zoomWidth = Unit.convertUnits(SEARCH_RADIUS, Unit.create(LinearUnit.Code.MILE_US), mapUnit);
                 Envelope zoomExtent = new Envelope(mLocation, zoomWidth, zoomWidth);
@@ -216,15 +287,22 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
                 extras = getIntent().getExtras();
                 if (extras != null) {
-                  startText = extras.getString("start");
-                  endText = extras.getString("end");
+                  routeStops = extras.getStringArray("stops");
                   basemap = extras.getInt("basemap");
 
-                  // route start and end points
-                  route(startText, endText);
+                  // route through all stops
+                  if (routeStops != null && routeStops.length >= 2) {
+                    route(routeStops);
+                  }
                 }
               }
 
+              // follow the route while navigating, otherwise show the fix
+              if (!navigating || routeTracker == null
+                  || !trackLocation(locx, locy, loc.hasAccuracy() ? loc.getAccuracy() : 0)) {
+                showPosition(fix[0], fix[1]);
+              }
+              recordTrack(loc);
             }
 
             @Override
@@ -241,7 +319,10 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
             }
           });
-          ls.start();
+          mLocationScheduler.setNavigating(navigating);
+          // keep the breadcrumb track going while the screen is off
+          mLocationScheduler.setRecording(mTrackRecorder != null);
+          mLocationScheduler.start();
 
         }
 
@@ -265,6 +346,42 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
   public void setMapView(MapView mapView) {
     mMapView = mapView;
     mMapView.setOnSingleTapListener(new SingleTapListener(mMapView));
+    mMapView.setOnZoomListener(new OnZoomListener() {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public void preAction(float pivotX, float pivotY, double factor) {
+      }
+
+      @Override
+      public void postAction(float pivotX, float pivotY, double factor) {
+        updateRouteDetail();
+        FeatureLayerIndex.mapMoved();
+      }
+    });
+    mMapView.setOnPanListener(new OnPanListener() {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public void prePointerMove(float fromx, float fromy, float tox, float toy) {
+      }
+
+      @Override
+      public void postPointerMove(float fromx, float fromy, float tox, float toy) {
+      }
+
+      @Override
+      public void prePointerUp(float fromx, float fromy, float tox, float toy) {
+      }
+
+      @Override
+      public void postPointerUp(float fromx, float fromy, float tox, float toy) {
+        // layers in on demand mode fetch the features of the new extent
+        FeatureLayerIndex.mapMoved();
+      }
+    });
     setContentView(mMapView);
   }
 
@@ -281,10 +398,17 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
     locationLayer = new GraphicsLayer();
     mMapView.addLayer(locationLayer);
 
+    // Add the breadcrumb trail layer below the route
+    trackLayer = new GraphicsLayer();
+    mMapView.addLayer(trackLayer);
+
     // Add the route graphic layer (shows the full route)
     routeLayer = new GraphicsLayer();
     mMapView.addLayer(routeLayer);
 
+    // Add the device location layer on top
+    positionLayer = new GraphicsLayer();
+    mMapView.addLayer(positionLayer);
   }
 
   @Override
@@ -295,6 +419,8 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
     View searchRef = menu.findItem(R.id.menu_search).getActionView();
     // get a reference to EditText field
     searchText = (EditText) searchRef.findViewById(R.id.searchText);
+    // suggest addresses while typing
+    mSuggestions = new SearchSuggestions(this, searchText, this);
     // return
     return super.onCreateOptionsMenu(menu);
   }
@@ -346,6 +472,8 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
     locationLayer.removeAll();
     // remove any previous routes
     routeLayer.removeAll();
+    routeGraphicId = -1;
+    setNavigating(false);
     // obtain address from text box
     String address = searchText.getText().toString();
     // set parameters to support the find operation for a geocoding service
@@ -358,6 +486,29 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
    * @param address
    */
   private void setSearchParams(String address) {
+    LocatorFindParameters findParams = createFindParameters(address);
+    findParams.setMaxLocations(2);
+    // key used to find previous results for the same search area
+    String cacheKey = createCacheKey(address);
+    // a new search supersedes any search still running
+    if (mGeocode != null) {
+      mGeocode.cancel(true);
+    }
+    if (mSuggestions != null) {
+      mSuggestions.dismiss();
+    }
+    // execute async task to geocode address
+    mGeocode = new GeocoderTask(this, cacheKey);
+    mGeocode.execute(findParams);
+  }
+
+  /**
+   * Create Locator parameters which search around the current map extent
+   * 
+   * @param address
+   */
+  @Override
+  public LocatorFindParameters createFindParameters(String address) {
     // create Locator parameters from single line address string
     LocatorFindParameters findParams = new LocatorFindParameters(address);
     // set the search extent to extent of map
@@ -365,52 +516,109 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
     // Envelope searchExtent = mMapView.getMapBoundaryExtent();
     // Use the centre of the current map extent as the find location point
     findParams.setLocation(mMapView.getCenter(), mMapView.getSpatialReference());
-    // calculate distance for find operation
+    findParams.setDistance(getSearchDistance());
+    // set address spatial reference to match map
+    findParams.setOutSR(mMapView.getSpatialReference());
+    return findParams;
+  }
+
+  @Override
+  public String createCacheKey(String address) {
+    return GeocodeCache.createKey(address, mMapView.getCenter(), getSearchDistance(),
+        mMapView.getSpatialReference());
+  }
+
+  @Override
+  public SpatialReference getSearchSpatialReference() {
+    return mMapView.getSpatialReference();
+  }
+
+  @Override
+  public void onSuggestionSelected(LocatorGeocodeResult result) {
+    // hide virtual keyboard
+    InputMethodManager inputManager = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
+    inputManager.hideSoftInputFromWindow(searchText.getWindowToken(), 0);
+    // remove any previous graphics and routes
+    locationLayer.removeAll();
+    routeLayer.removeAll();
+    routeGraphicId = -1;
+    setNavigating(false);
+    showGeocodeResult(result);
+  }
+
+  /*
+   * calculate distance for find operation
+   */
+  private double getSearchDistance() {
     Envelope mapExtent = new Envelope();
     mMapView.getExtent().queryEnvelope(mapExtent);
     // assume map is in metres, other units wont work
     // double current envelope
-    double distance = (mapExtent != null && mapExtent.getWidth() > 0) ? mapExtent.getWidth() * 2 : 10000;
-    findParams.setDistance(distance);
-    findParams.setMaxLocations(2);
-    // set address spatial reference to match map
-    findParams.setOutSR(mMapView.getSpatialReference());
-    // execute async task to geocode address
-    mGeocode = new GeocoderTask(this);
-    mGeocode.execute(findParams);
+    return (mapExtent != null && mapExtent.getWidth() > 0) ? mapExtent.getWidth() * 2 : 10000;
+  }
+
+  /**
+   * Draw a geocode result on the map with its matching address
+   * 
+   * @param result
+   */
+  private void showGeocodeResult(LocatorGeocodeResult result) {
+    // update global result
+    geocodeResult = result;
+
+    // get return geometry from geocode result
+    Geometry resultLocGeom = geocodeResult.getLocation();
+    // create marker symbol to represent location
+    SimpleMarkerSymbol resultSymbol = new SimpleMarkerSymbol(Color.BLACK, 20, SimpleMarkerSymbol.STYLE.SQUARE);
+    // create graphic object for resulting location
+    Graphic resultLocation = new Graphic(resultLocGeom, resultSymbol);
+    // add graphic to location layer
+    locationLayer.addGraphic(resultLocation);
+    // create text symbol for return address
+    TextSymbol resultAddress = new TextSymbol(12, geocodeResult.getAddress(), Color.BLACK);
+    // create offset for text
+    resultAddress.setOffsetX(10);
+    resultAddress.setOffsetY(50);
+    // create a graphic object for address text
+    Graphic resultText = new Graphic(resultLocGeom, resultAddress);
+    // add address text graphic to location graphics layer
+    locationLayer.addGraphic(resultText);
+    // zoom to geocode result
+
+    mMapView.zoomToResolution(geocodeResult.getLocation(), 2);
   }
 
   /**
-   * Submit start and end point for routing
+   * Submit start, intermediate and end points for routing
    * 
-   * @param start
-   * @param end
+   * @param stops
    */
-  public void route(String start, String end) {
+  public void route(String... stops) {
     // remove any previous graphics and callouts
     locationLayer.removeAll();
     // remove any previous routes
     routeLayer.removeAll();
+    routeGraphicId = -1;
+    // navigate when the route starts from the device
+    setNavigating(stops.length > 0 && RoutePipeline.MY_LOCATION.equals(stops[0]));
     // set parameters to geocode address for points
-    setRouteParams(start, end);
+    setRouteParams(stops);
   }
 
   /**
    * Set up Route Parameters to execute RouteTask
    * 
-   * @param start
-   * @param end
+   * @param stops
    */
   @SuppressWarnings("unchecked")
   // http://mail.openjdk.java.net/pipermail/coin-dev/2009-March/000217.html
-  private void setRouteParams(String start, String end) {
-    // create a list of start end point params
-    LocatorFindParameters routeStartParams = new LocatorFindParameters(start);
-    LocatorFindParameters routeEndParams = new LocatorFindParameters(end);
+  private void setRouteParams(String... stops) {
+    // create a list of stop params, intermediate stops are ordered when
+    // the route is solved
     List<LocatorFindParameters> routeParams = new ArrayList<LocatorFindParameters>();
-    // add params to list
-    routeParams.add(routeStartParams);
-    routeParams.add(routeEndParams);
+    for (String stop : stops) {
+      routeParams.add(new LocatorFindParameters(stop));
+    }
     // run asych route task
     new RouteAsyncTask().execute(routeParams);
 
@@ -418,11 +626,13 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
   @Override
   public void onDelete(ArcGISFeatureLayer fl, Popup popup) {
-    // Commit deletion to server
+    // Journal the deletion and send it when online
     Graphic gr = (Graphic) popup.getFeature();
-    if (gr == null)
+    Integer oid = getObjectId(fl, gr);
+    if (oid == null)
       return;
-    fl.applyEdits(null, new Graphic[] { gr }, null, new EditCallbackListener(this, fl, popup, true, "Deleting feature"));
+    EditJournal.getInstance(this).delete(fl.getUrl(), oid.intValue());
+    syncEdits();
 
     // Dismiss popup
     this.getSupportFragmentManager().popBackStack();
@@ -438,39 +648,122 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
   @Override
   public void onSave(ArcGISFeatureLayer fl, Popup popup) {
-    // Commit edits to server
+    // Journal the edits and send them when online
     Graphic gr = (Graphic) popup.getFeature();
-    if (gr != null) {
-      Map<String, Object> attributes = gr.getAttributes();
-      Map<String, Object> updatedAttrs = popup.getUpdatedAttributes();
-      for (Entry<String, Object> entry : updatedAttrs.entrySet()) {
-        attributes.put(entry.getKey(), entry.getValue());
+    Integer oid = getObjectId(fl, gr);
+    if (oid != null) {
+      EditJournal journal = EditJournal.getInstance(this);
+      String url = fl.getUrl();
+      // Only the attributes that changed since the feature was last saved,
+      // which may not have reached the server yet, and the geometry if it
+      // was edited
+      Map<String, Object> saved = journal.withPendingEdits(url, oid.intValue(), gr.getAttributes());
+      Map<String, Object> changes = EditJournal.changedAttributes(saved, popup.getUpdatedAttributes());
+      Geometry geometry = popup.getUpdatedGeometry();
+      if (!changes.isEmpty() || geometry != null) {
+        journal.update(url, oid.intValue(), changes, geometry);
+      }
+
+      // Newly added attachments and those marked as deleted
+      List<File> attachments = popup.getAddedAttachments();
+      if (attachments != null) {
+        for (File attachment : attachments) {
+          journal.addAttachment(url, oid.intValue(), attachment);
+        }
+      }
+      List<Integer> attachmentIDs = popup.getDeletedAttachmentIDs();
+      if (attachmentIDs != null) {
+        for (Integer attachmentID : attachmentIDs) {
+          journal.deleteAttachment(url, oid.intValue(), attachmentID.intValue());
+        }
       }
-      Graphic newgr = new Graphic(gr.getGeometry(), null, attributes);
-      fl.applyEdits(null, null, new Graphic[] { newgr }, new EditCallbackListener(this, fl, popup, true,
-          "Saving feature"));
+      syncEdits();
     }
 
     // Dismiss popup
     this.getSupportFragmentManager().popBackStack();
   }
 
+  // Object id of a feature, null if it has none
+  private static Integer getObjectId(ArcGISFeatureLayer fl, Graphic gr) {
+    if (fl == null || gr == null || fl.getObjectIdField() == null)
+      return null;
+    Object oid = gr.getAttributeValue(fl.getObjectIdField());
+    return oid instanceof Number ? Integer.valueOf(((Number) oid).intValue()) : null;
+  }
+
+  /*
+   * Send journalled edits of the editable feature layers in the map, if the
+   * device is online.
+   */
+  void syncEdits() {
+    NetworkInfo network = ((ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
+    if (network == null || !network.isConnected() || mMapView == null)
+      return;
+    EditJournal journal = EditJournal.getInstance(this);
+    if (journal.getPendingCount() == 0)
+      return;
+    for (Layer layer : mMapView.getLayers()) {
+      Layer[] layers = layer instanceof GroupLayer ? ((GroupLayer) layer).getLayers() : new Layer[] { layer };
+      if (layers == null)
+        continue;
+      for (Layer sublayer : layers) {
+        if (sublayer instanceof ArcGISFeatureLayer && sublayer.isInitialized()
+            && ((ArcGISFeatureLayer) sublayer).isEditable()) {
+          journal.sync((ArcGISFeatureLayer) sublayer, mEditSyncListener);
+        }
+      }
+    }
+  }
+
   @Override
   protected void onDestroy() {
     super.onDestroy();
+    AttachmentUploader.getInstance(this).setProgressListener(null);
+    if (mLocationScheduler != null) {
+      mLocationScheduler.stop();
+    }
+    if (mTrackRecorder != null) {
+      try {
+        mTrackRecorder.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
     if (mGeocode != null) {
       mGeocode.mActivity = null;
     }
+    if (mSuggestions != null) {
+      mSuggestions.dismiss();
+    }
   }
 
   @Override
   protected void onPause() {
     super.onPause();
+    unregisterReceiver(mConnectivityReceiver);
+    // slow down or stop location updates while in the background
+    if (mLocationScheduler != null) {
+      mLocationScheduler.setForeground(false);
+    }
+    // make sure the track so far is on storage
+    if (mTrackRecorder != null) {
+      try {
+        mTrackRecorder.sync();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
   }
 
   @Override
   protected void onResume() {
     super.onResume();
+    if (mLocationScheduler != null) {
+      mLocationScheduler.setForeground(true);
+    }
+    // send journalled edits now and whenever the device comes online
+    registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
   }
 
   /*
@@ -481,9 +774,15 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
     @SuppressWarnings("unused")
     WeakReference<MapsApp> mActivity;
+    // geocode cache lookup key
+    String mCacheKey;
+    // spatial reference of the results
+    SpatialReference mOutSR;
 
-    GeocoderTask(MapsApp activity) {
+    GeocoderTask(MapsApp activity, String cacheKey) {
       mActivity = new WeakReference<MapsApp>(activity);
+      mCacheKey = cacheKey;
+      mOutSR = activity.mMapView.getSpatialReference();
     }
 
     @Override
@@ -496,6 +795,14 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
     // The result of geocode task is passed as a parameter to map the
     // results
+    @Override
+    protected void onCancelled() {
+      // leave the dialog to the search which replaced this one
+      if (mGeocode == this && mProgressDialog.isShowing()) {
+        mProgressDialog.dismiss();
+      }
+    }
+
     @Override
     protected void onPostExecute(List<LocatorGeocodeResult> result) {
 
@@ -511,44 +818,27 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
         toast.show();
       } else {
         // get first result in the list
-        // update global result
-        geocodeResult = result.get(0);
-
-        // get return geometry from geocode result
-        Geometry resultLocGeom = geocodeResult.getLocation();
-        // create marker symbol to represent location
-        SimpleMarkerSymbol resultSymbol = new SimpleMarkerSymbol(Color.BLACK, 20, SimpleMarkerSymbol.STYLE.SQUARE);
-        // create graphic object for resulting location
-        Graphic resultLocation = new Graphic(resultLocGeom, resultSymbol);
-        // add graphic to location layer
-        locationLayer.addGraphic(resultLocation);
-        // create text symbol for return address
-        TextSymbol resultAddress = new TextSymbol(12, geocodeResult.getAddress(), Color.BLACK);
-        // create offset for text
-        resultAddress.setOffsetX(10);
-        resultAddress.setOffsetY(50);
-        // create a graphic object for address text
-        Graphic resultText = new Graphic(resultLocGeom, resultAddress);
-        // add address text graphic to location graphics layer
-        locationLayer.addGraphic(resultText);
-        // zoom to geocode result
-
-        mMapView.zoomToResolution(geocodeResult.getLocation(), 2);
+        showGeocodeResult(result.get(0));
       }
     }
 
     @Override
     protected List<LocatorGeocodeResult> doInBackground(LocatorFindParameters... params) {
-      // create results object and set to null
-      List<LocatorGeocodeResult> results = null;
-      // set the geocode service
-      locator = Locator.createOnlineLocator();
+      // return previous results for the same search without a round trip
+      GeocodeCache cache = GeocodeCache.getInstance(MapsApp.this);
+      List<LocatorGeocodeResult> results = cache.get(mCacheKey);
+      if (results != null) {
+        return results;
+      }
+      // set the geocode service, offline gazetteer first then online
+      GeocodeProvider geocoder = ServiceRegistry.getInstance(MapsApp.this).getGeocodeProvider();
 
       try {
 
         // pass address to find method to return point representing
         // address
-        results = locator.find(params[0]);
+        results = geocoder.find(params[0], mOutSR);
+        cache.put(mCacheKey, results);
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -558,10 +848,15 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
 
   }
 
-  private class RouteAsyncTask extends AsyncTask<List<LocatorFindParameters>, Void, RouteResult> {
+  private class RouteAsyncTask extends AsyncTask<List<LocatorFindParameters>, Void, CompactRoute> {
+
+    private Point mStart;
 
     @Override
     protected void onPreExecute() {
+      // if GPS then location known and can be reprojected, copied here as
+      // the location keeps changing while the route is solved
+      mStart = mLocation == null ? null : WebMercator.project(mLocation, mMapView.getSpatialReference(), egs);
       // set the message of the progress dialog
       mProgressDialog.setMessage(getString(R.string.route_search));
       // display the progress dialog on the UI thread
@@ -569,7 +864,7 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
     }
 
     @Override
-    protected void onPostExecute(RouteResult result) {
+    protected void onPostExecute(CompactRoute result) {
       if (mProgressDialog.isShowing()) {
         mProgressDialog.dismiss();
       }
@@ -581,83 +876,320 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
         Toast toast = Toast.makeText(MapsApp.this, "No result found.", Toast.LENGTH_LONG);
         toast.show();
       } else {
-        route = result.getRoutes().get(0);
-        PictureMarkerSymbol destinationSymbol = new PictureMarkerSymbol(mMapView.getContext(), getResources()
-            .getDrawable(R.drawable.stat_finish));
-        // graphic to mark route
-        Graphic routeGraphic = route.getRouteGraphic();
-        Graphic endGraphic = new Graphic(((Polyline) routeGraphic.getGeometry()).getPoint(((Polyline) routeGraphic
-            .getGeometry()).getPointCount() - 1), destinationSymbol);
-
-        // Get the full route summary and set it as our current label
-        routeLayer.addGraphics(new Graphic[] { routeGraphic, endGraphic });
-
+        showRoute(result);
         // Zoom to the extent of the entire route with a padding
         mMapView.setExtent(route.getEnvelope(), 100);
 
+        // solve an old cached route again and redraw it if it is still shown
+        if (RouteCache.getInstance(MapsApp.this).needsRefresh(result)) {
+          new RouteRefreshTask().execute(result);
+        }
       }
     }
 
     @Override
-    protected RouteResult doInBackground(List<LocatorFindParameters>... params) {
+    protected CompactRoute doInBackground(List<LocatorFindParameters>... params) {
+      // geocode all stops concurrently then solve the route
+      RoutePipeline pipeline = createRoutePipeline();
+      CompactRoute result = null;
+      try {
+        result = pipeline.solve(params[0], mStart, mMapView.getSpatialReference());
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      Log.d(TAG, "route " + pipeline.getTimings());
+      return result;
+    }
+  }
 
-      // define route objects
-      List<LocatorGeocodeResult> geocodeStartResult = null;
-      List<LocatorGeocodeResult> geocodeEndResult = null;
-      Point startPoint = null;
-      Point endPoint = null;
-      RouteParameters routeParams = null;
+  /*
+   * Solves a cached route again in the background and stores the result
+   */
+  private class RouteRefreshTask extends AsyncTask<CompactRoute, Void, CompactRoute> {
 
-      // parse LocatorFindParameters
-      LocatorFindParameters startParam = params[0].get(0);
-      LocatorFindParameters endParam = params[0].get(1);
-      // create a new locator to geocode start/end points
-      Locator locator = Locator.createOnlineLocator();
+    private CompactRoute mStale;
 
+    @Override
+    protected CompactRoute doInBackground(CompactRoute... params) {
+      mStale = params[0];
       try {
-        // if GPS then location known and can be reprojected
-        if (startParam.getText().equals("My Location")) {
-          // startPoint = mLocation;
-          startPoint = (Point) GeometryEngine.project(mLocation, wm, egs);
-        } else {
-          // if not GPS than we need to geocode and get location
-          geocodeStartResult = locator.find(startParam);
-          startPoint = geocodeStartResult.get(0).getLocation();
-
-        }
-        // geocode the destination
-        geocodeEndResult = locator.find(endParam);
-        endPoint = geocodeEndResult.get(0).getLocation();
+        return createRoutePipeline().solveAndCache(mStale.getStops(), mMapView.getSpatialReference());
       } catch (Exception e) {
         e.printStackTrace();
+        return null;
       }
+    }
 
-      // Create a new routing task pointing to an
-      // NAService
-      try {
-        routeTask = RouteTask.createOnlineRouteTask(getString(R.string.routingservice_url), null);
-        // build routing parameters
-        routeParams = routeTask.retrieveDefaultRouteTaskParameters();
-      } catch (Exception e1) {
-        e1.printStackTrace();
-      }
-
-      NAFeaturesAsFeature routeFAF = new NAFeaturesAsFeature();
-      // Create the stop points
-      StopGraphic sgStart = new StopGraphic(startPoint);
-      StopGraphic sgEnd = new StopGraphic(endPoint);
-      routeFAF.setFeatures(new Graphic[] { sgStart, sgEnd });
-      routeFAF.setCompressedRequest(true);
-      routeParams.setStops(routeFAF);
-      routeParams.setOutSpatialReference(mMapView.getSpatialReference());
+    @Override
+    protected void onPostExecute(CompactRoute result) {
+      // only replace the route if the user hasn't moved on
+      if (result != null && route == mStale) {
+        routeLayer.removeAll();
+        showRoute(result);
+      }
+    }
+  }
+
+  private RoutePipeline createRoutePipeline() {
+    return new RoutePipeline(ServiceRegistry.getInstance(this), GeocodeCache.getInstance(this),
+        RouteCache.getInstance(this));
+  }
 
+  /**
+   * Draw a route and its destination on the route layer
+   * 
+   * @param result
+   */
+  private void showRoute(CompactRoute result) {
+    route = result;
+    PictureMarkerSymbol destinationSymbol = new PictureMarkerSymbol(mMapView.getContext(), getResources()
+        .getDrawable(R.drawable.stat_finish));
+    // graphic to mark route
+    Graphic routeGraphic = new Graphic(route.toPolyline(), new SimpleLineSymbol(Color.BLUE, 5));
+    Graphic endGraphic = new Graphic(route.getEndPoint(), destinationSymbol);
+
+    // Get the full route summary and set it as our current label
+    int[] ids = routeLayer.addGraphics(new Graphic[] { routeGraphic, endGraphic });
+    routeGraphicId = ids == null ? -1 : ids[0];
+    routeLevel = 0;
+    routePyramid = null;
+    routeTracker = null;
+    // simplify the route for smaller scales off the UI thread
+    new RoutePyramidTask().execute(route);
+    if (navigating) {
+      new RouteTrackerTask().execute(route);
+    }
+  }
+
+  /**
+   * Snap a fix to the route, show where on the route the device is and solve
+   * the rest of the route again once the device has left it
+   * 
+   * @param longitude
+   *          device location in WGS84
+   * @param latitude
+   *          device location in WGS84
+   * @param accuracy
+   *          accuracy of the fix in metres
+   * @return true if the location was shown on the route
+   */
+  private boolean trackLocation(double longitude, double latitude, float accuracy) {
+    if (routeTracker.update(mLocation.getX(), mLocation.getY(), accuracy)) {
+      reroute(new Point(longitude, latitude));
+      return false;
+    }
+    if (routeTracker.isOffRoute() || !routeTracker.hasSnapped()) {
+      return false;
+    }
+    showPosition(routeTracker.getSnappedX(), routeTracker.getSnappedY());
+    return true;
+  }
+
+  /**
+   * Move the device location marker
+   */
+  private void showPosition(double x, double y) {
+    Point position = new Point(x, y);
+    if (positionGraphicId < 0) {
+      SimpleMarkerSymbol positionSymbol = new SimpleMarkerSymbol(Color.BLUE, 12, SimpleMarkerSymbol.STYLE.CIRCLE);
+      positionGraphicId = positionLayer.addGraphic(new Graphic(position, positionSymbol));
+    } else {
+      positionLayer.updateGraphic(positionGraphicId, position);
+    }
+  }
+
+  /**
+   * Open today's track, continuing it if the app was used earlier today
+   */
+  private void openTrack() {
+    File dir = new File(getFilesDir(), "tracks");
+    if (!dir.exists() && !dir.mkdirs()) {
+      Log.w(TAG, "unable to create " + dir);
+    }
+    String day = new SimpleDateFormat("yyyyMMdd", Locale.US).format(new Date());
+    try {
+      mTrackRecorder = new TrackRecorder(new File(dir, "track-" + day + ".bin"), mMapView.getSpatialReference());
+      drawTrack();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Add a fix to the track and redraw the trail every few seconds
+   */
+  private void recordTrack(Location loc) {
+    if (mTrackRecorder == null) {
+      return;
+    }
+    try {
+      boolean changed = mTrackRecorder.add(loc.getTime(), loc.getLongitude(), loc.getLatitude(),
+          loc.hasAccuracy() ? loc.getAccuracy() : 0);
+      if (changed && loc.getTime() - trackDrawn >= TRACK_REDRAW_INTERVAL) {
+        trackDrawn = loc.getTime();
+        drawTrack();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void drawTrack() {
+    Polyline trail = mTrackRecorder.getTrail();
+    if (trail == null) {
+      return;
+    }
+    if (trackGraphicId < 0) {
+      SimpleLineSymbol trailSymbol = new SimpleLineSymbol(Color.GRAY, 3);
+      trackGraphicId = trackLayer.addGraphic(new Graphic(trail, trailSymbol));
+    } else {
+      trackLayer.updateGraphic(trackGraphicId, trail);
+    }
+  }
+
+  /**
+   * Start or stop following the device along the route, location updates
+   * are more frequent while navigating
+   */
+  private void setNavigating(boolean navigate) {
+    navigating = navigate;
+    if (mLocationScheduler != null) {
+      mLocationScheduler.setNavigating(navigate);
+    }
+  }
+
+  /**
+   * Solve the route again from the device location through the stops not
+   * yet reached
+   */
+  private void reroute(Point wgspoint) {
+    if (rerouting) {
+      return;
+    }
+    Point[] stops = route.getStops();
+    int next = Math.max(routeTracker.getNextStop(), 1);
+    Point[] remaining = new Point[stops.length - next + 1];
+    remaining[0] = wgspoint;
+    System.arraycopy(stops, next, remaining, 1, stops.length - next);
+    rerouting = true;
+    new RerouteTask().execute(remaining);
+  }
+
+  /*
+   * Indexes a route for navigation in the background
+   */
+  private class RouteTrackerTask extends AsyncTask<CompactRoute, Void, RouteTracker> {
+
+    private CompactRoute mRoute;
+
+    @Override
+    protected RouteTracker doInBackground(CompactRoute... params) {
+      mRoute = params[0];
+      SpatialReference sr = mMapView.getSpatialReference();
+      // the tracker needs the stops in map coordinates
+      Point[] stops = mRoute.getStops();
+      double[] coords = new double[stops.length * 2];
+      for (int i = 0; i < stops.length; i++) {
+        coords[i * 2] = stops[i].getX();
+        coords[i * 2 + 1] = stops[i].getY();
+      }
+      WebMercator.project(coords, stops.length, egs, sr);
+      Envelope extent = mRoute.getEnvelope();
+      double metresPerUnit = RouteTracker.metresPerUnit(sr.getID(), extent.getCenterY());
+      return new RouteTracker(mRoute, coords, metresPerUnit);
+    }
+
+    @Override
+    protected void onPostExecute(RouteTracker result) {
+      if (route == mRoute) {
+        routeTracker = result;
+      }
+    }
+  }
+
+  /*
+   * Solves the rest of a route from the device location after it went off
+   * route
+   */
+  private class RerouteTask extends AsyncTask<Point, Void, CompactRoute> {
+
+    private CompactRoute mLeft;
+
+    @Override
+    protected void onPreExecute() {
+      mLeft = route;
+    }
+
+    @Override
+    protected CompactRoute doInBackground(Point... params) {
       try {
-        // Solve the route
-        routeResult = routeTask.solve(routeParams);
+        return createRoutePipeline().solveAndCache(params, mMapView.getSpatialReference());
       } catch (Exception e) {
         e.printStackTrace();
+        return null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(CompactRoute result) {
+      rerouting = false;
+      // drop the new route if navigation stopped or another route is shown
+      if (!navigating || route != mLeft) {
+        return;
+      }
+      if (result != null) {
+        routeLayer.removeAll();
+        showRoute(result);
+      } else if (routeTracker != null) {
+        // try again after the next few fixes off route
+        routeTracker.resetOffRoute();
+      }
+    }
+  }
+
+  /**
+   * Draw the route with as few vertices as look the same at the current
+   * resolution
+   */
+  private void updateRouteDetail() {
+    if (routePyramid == null || routeGraphicId < 0) {
+      return;
+    }
+    int level = routePyramid.levelFor(mMapView.getResolution());
+    if (level != routeLevel) {
+      routeLevel = level;
+      routeLayer.updateGraphic(routeGraphicId, routePyramid.getPolyline(level));
+    }
+  }
+
+  /*
+   * Builds the simplified levels of a route in the background
+   */
+  private class RoutePyramidTask extends AsyncTask<CompactRoute, Void, RoutePyramid> {
+
+    private CompactRoute mRoute;
+
+    @Override
+    protected RoutePyramid doInBackground(CompactRoute... params) {
+      mRoute = params[0];
+      SpatialReference sr = mMapView.getSpatialReference();
+      // start at about a metre, in degrees for geographic maps
+      double finest = sr != null && sr.getID() == 4326 ? 1e-5 : 1.0;
+      RoutePyramid pyramid = RoutePyramid.build(mRoute, finest);
+      // create the geometries now rather than while zooming
+      for (int i = 1; i < pyramid.getLevelCount(); i++) {
+        pyramid.getPolyline(i);
+      }
+      return pyramid;
+    }
+
+    @Override
+    protected void onPostExecute(RoutePyramid result) {
+      // ignore a pyramid of a route that is no longer shown
+      if (route == mRoute) {
+        routePyramid = result;
+        updateRouteDetail();
       }
-      return routeResult;
     }
   }
 
@@ -689,18 +1221,50 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
       }
 
       if (update == true) {
-        // update the adapter
+        // show the basemaps, then fill in the thumbnails as they arrive
         bAdapter.notifyDataSetChanged();
+        loadThumbnails();
       }
 
     }
 
+    private void loadThumbnails() {
+      ThumbnailCache thumbnails = ThumbnailCache.getInstance(MapsApp.this);
+      // the gallery may be reopened before all thumbnails arrive
+      final BasemapsAdapter adapter = bAdapter;
+      final GridView grid = gridView;
+      for (int i = 0; i < itemDataList.size(); i++) {
+        final BasemapItem basemapItem = itemDataList.get(i);
+        if (basemapItem.itemThumbnail != null) {
+          continue;
+        }
+        final int position = i;
+        thumbnails.load(basemapItem.item, new ThumbnailCache.Callback() {
+
+          @Override
+          public void onThumbnail(PortalItem item, Bitmap bitmap) {
+            basemapItem.itemThumbnail = bitmap;
+            adapter.updateThumbnail(grid, position);
+          }
+        });
+      }
+    }
+
     private void fetchBasemapsItems() throws Exception {
       // GIST > https://gist.github.com/doneill/5499642
       // Open default portal
       String url = "http://www.arcgis.com";
       portal = new Portal(url, null);
 
+      ThumbnailCache thumbnails = ThumbnailCache.getInstance(MapsApp.this);
+      // the basemap gallery rarely changes, query the portal once per session
+      if (sBasemapPortalItems != null) {
+        for (PortalItem item : sBasemapPortalItems) {
+          addBasemapItem(thumbnails, item);
+        }
+        return;
+      }
+
       // get the information provided by portal
       PortalInfo portalInfo = portal.fetchPortalInfo();
       // get query to determine which basemap gallery group should be used
@@ -729,141 +1293,48 @@ public class MapsApp extends FragmentActivity implements OnEditListener {
         queryResultSet = portal.findItems(queryParams);
 
         for (PortalItem item : queryResultSet.getResults()) {
-          byte[] data = item.fetchThumbnail();
-          if (data != null) {
-            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-            BasemapItem portalItemData = new BasemapItem(item, bitmap);
-            Log.i("TAG", "Item id = " + item.getTitle());
-            itemDataList.add(portalItemData);
-          }
+          addBasemapItem(thumbnails, item);
         }
+        sBasemapPortalItems = new ArrayList<PortalItem>(queryResultSet.getResults());
 
       } else {
         Log.i("TAG", "portal group empty");
       }
     }
-  }
-
-  // Handle callback on committing edits to server
-  private class EditCallbackListener implements CallbackListener<FeatureEditResult[][]> {
-    private String operation = "Operation ";
-    private ArcGISFeatureLayer featureLayer = null;
-    private boolean existingFeature = true;
-    private Popup popup = null;
-    private Context context;
 
-    public EditCallbackListener(Context context, ArcGISFeatureLayer featureLayer, Popup popup, boolean existingFeature,
-        String msg) {
-      this.operation = msg;
-      this.featureLayer = featureLayer;
-      this.existingFeature = existingFeature;
-      this.popup = popup;
-      this.context = context;
+    private void addBasemapItem(ThumbnailCache thumbnails, PortalItem item) {
+      // a placeholder cell unless the thumbnail is still in memory, the
+      // others are loaded after the items are shown
+      BasemapItem portalItemData = new BasemapItem(item, thumbnails.getCached(item));
+      Log.i("TAG", "Item id = " + item.getTitle());
+      itemDataList.add(portalItemData);
     }
+  }
+
+  // Report how sending journalled edits to the server went
+  private class EditSyncListener implements EditJournal.Listener {
 
     @Override
-    public void onCallback(FeatureEditResult[][] objs) {
-      if (featureLayer == null || !featureLayer.isInitialized() || !featureLayer.isEditable())
-        return;
+    public void onSynced(ArcGISFeatureLayer featureLayer, final int applied, final int rejected) {
+      // edited features may have moved, index the layer again
+      FeatureLayerIndex.invalidate(featureLayer);
 
       runOnUiThread(new Runnable() {
 
         @Override
         public void run() {
-          Toast.makeText(context, operation + " succeeded!", Toast.LENGTH_SHORT).show();
-        }
-      });
-
-      if (objs[1] == null || objs[1].length <= 0) {
-        // Save attachments to the server if newly added attachments
-        // exist.
-        // Retrieve object id of the feature
-        int oid;
-        if (existingFeature) {
-          oid = objs[2][0].getObjectId();
-        } else {
-          oid = objs[0][0].getObjectId();
-        }
-        // Get newly added attachments
-        List<File> attachments = popup.getAddedAttachments();
-        if (attachments != null && attachments.size() > 0) {
-          for (File attachment : attachments) {
-            // Save newly added attachment based on the object id of
-            // the feature.
-            featureLayer.addAttachment(oid, attachment, new CallbackListener<FeatureEditResult>() {
-              @Override
-              public void onError(Throwable e) {
-                // Failed to save new attachments.
-                runOnUiThread(new Runnable() {
-                  @Override
-                  public void run() {
-                    Toast.makeText(context, "Adding attachment failed!", Toast.LENGTH_SHORT).show();
-                  }
-                });
-              }
-
-              @Override
-              public void onCallback(FeatureEditResult arg0) {
-                // New attachments have been saved.
-                runOnUiThread(new Runnable() {
-                  @Override
-                  public void run() {
-                    Toast.makeText(context, "Adding attachment succeeded!.", Toast.LENGTH_SHORT).show();
-                  }
-                });
-              }
-            });
+          if (rejected > 0) {
+            Toast.makeText(MapsApp.this, rejected + " edits were rejected by the server!", Toast.LENGTH_SHORT).show();
+          } else if (applied > 0) {
+            Toast.makeText(MapsApp.this, "Saving edits succeeded!", Toast.LENGTH_SHORT).show();
           }
         }
-
-        // Delete attachments if some attachments have been mark as
-        // delete.
-        // Get ids of attachments which are marked as delete.
-        List<Integer> attachmentIDs = popup.getDeletedAttachmentIDs();
-        if (attachmentIDs != null && attachmentIDs.size() > 0) {
-          int[] ids = new int[attachmentIDs.size()];
-          for (int i = 0; i < attachmentIDs.size(); i++) {
-            ids[i] = attachmentIDs.get(i);
-          }
-          // Delete attachments
-          featureLayer.deleteAttachments(oid, ids, new CallbackListener<FeatureEditResult[]>() {
-            @Override
-            public void onError(Throwable e) {
-              // Failed to delete attachments
-              runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                  Toast.makeText(context, "Deleting attachment failed!", Toast.LENGTH_SHORT).show();
-                }
-              });
-            }
-
-            @Override
-            public void onCallback(FeatureEditResult[] objs) {
-              // Attachments have been removed.
-              runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                  Toast.makeText(context, "Deleting attachment succeeded!", Toast.LENGTH_SHORT).show();
-                }
-              });
-            }
-          });
-        }
-
-      }
+      });
     }
 
     @Override
-    public void onError(Throwable e) {
-      runOnUiThread(new Runnable() {
-
-        @Override
-        public void run() {
-          Toast.makeText(context, operation + " failed!", Toast.LENGTH_SHORT).show();
-        }
-      });
+    public void onSyncFailed(ArcGISFeatureLayer featureLayer, Throwable e) {
+      Log.w(TAG, "unable to send edits, will retry when online", e);
     }
-
   }
 }
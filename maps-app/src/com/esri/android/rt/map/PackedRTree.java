@@ -0,0 +1,221 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+/**
+ * A static R-tree over envelopes, bulk loaded with Sort-Tile-Recursive
+ * packing. Every level is held in flat arrays: four doubles of bounds per
+ * entry and one int which is the item id for leaf entries and the first child
+ * entry for nodes. The root is the last entry.
+ */
+public class PackedRTree {
+
+	// entries per node
+	static final int NODE_SIZE = 16;
+
+	// xmin, ymin, xmax, ymax of every entry, items first then each level
+	private final double[] mBounds;
+	// item id of a leaf entry, index of the first child of a node entry
+	private final int[] mRefs;
+	// first entry of each level, and the total number of entries at the end
+	private final int[] mLevelStarts;
+	private final int mCount;
+
+	/**
+	 * @param boxes
+	 *            xmin, ymin, xmax, ymax of each item
+	 * @param ids
+	 *            id of each item
+	 * @param count
+	 *            number of items
+	 */
+	public PackedRTree(double[] boxes, int[] ids, int count) {
+		mCount = count;
+		// count the entries of every level
+		int levels = 1;
+		int total = count;
+		for (int n = count; n > 1; n = (n + NODE_SIZE - 1) / NODE_SIZE) {
+			total += (n + NODE_SIZE - 1) / NODE_SIZE;
+			levels++;
+		}
+		mBounds = new double[total * 4];
+		mRefs = new int[total];
+		mLevelStarts = new int[levels + 1];
+		System.arraycopy(boxes, 0, mBounds, 0, count * 4);
+		System.arraycopy(ids, 0, mRefs, 0, count);
+
+		int start = 0;
+		int n = count;
+		int level = 0;
+		mLevelStarts[0] = 0;
+		while (n > 1) {
+			sortTiles(start, n);
+			int parents = (n + NODE_SIZE - 1) / NODE_SIZE;
+			int parentStart = start + n;
+			for (int p = 0; p < parents; p++) {
+				int first = start + p * NODE_SIZE;
+				int last = Math.min(first + NODE_SIZE, start + n);
+				int e = parentStart + p;
+				mBounds[e * 4] = Double.POSITIVE_INFINITY;
+				mBounds[e * 4 + 1] = Double.POSITIVE_INFINITY;
+				mBounds[e * 4 + 2] = Double.NEGATIVE_INFINITY;
+				mBounds[e * 4 + 3] = Double.NEGATIVE_INFINITY;
+				for (int c = first; c < last; c++) {
+					mBounds[e * 4] = Math.min(mBounds[e * 4], mBounds[c * 4]);
+					mBounds[e * 4 + 1] = Math.min(mBounds[e * 4 + 1],
+							mBounds[c * 4 + 1]);
+					mBounds[e * 4 + 2] = Math.max(mBounds[e * 4 + 2],
+							mBounds[c * 4 + 2]);
+					mBounds[e * 4 + 3] = Math.max(mBounds[e * 4 + 3],
+							mBounds[c * 4 + 3]);
+				}
+				mRefs[e] = first;
+			}
+			start = parentStart;
+			n = parents;
+			mLevelStarts[++level] = start;
+		}
+		mLevelStarts[levels] = total;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * Find the items whose envelopes intersect a rectangle.
+	 *
+	 * @return number of ids written to out, which grows as needed and is
+	 *         returned through holder[0]
+	 */
+	public int search(double xmin, double ymin, double xmax, double ymax,
+			int[][] holder) {
+		if (mCount == 0)
+			return 0;
+		int[] out = holder[0];
+		int found = 0;
+		int levels = mLevelStarts.length - 1;
+		// stack of entry index and its level
+		int[] stack = new int[levels * NODE_SIZE * 2];
+		int top = 0;
+		stack[top++] = mLevelStarts[levels] - 1;
+		stack[top++] = levels - 1;
+		while (top > 0) {
+			int level = stack[--top];
+			int e = stack[--top];
+			if (mBounds[e * 4] > xmax || mBounds[e * 4 + 1] > ymax
+					|| mBounds[e * 4 + 2] < xmin || mBounds[e * 4 + 3] < ymin)
+				continue;
+			if (level == 0) {
+				if (found == out.length) {
+					int[] grown = new int[Math.max(16, out.length * 2)];
+					System.arraycopy(out, 0, grown, 0, found);
+					out = grown;
+				}
+				out[found++] = mRefs[e];
+				continue;
+			}
+			int first = mRefs[e];
+			int last = Math.min(first + NODE_SIZE, mLevelStarts[level]);
+			for (int c = first; c < last; c++) {
+				stack[top++] = c;
+				stack[top++] = level - 1;
+			}
+		}
+		holder[0] = out;
+		return found;
+	}
+
+	/*
+	 * Sort-Tile-Recursive ordering of n entries: sort by x centre into
+	 * vertical slices of about sqrt(n / NODE_SIZE) nodes, then sort each
+	 * slice by y centre.
+	 */
+	private void sortTiles(int start, int n) {
+		int nodes = (n + NODE_SIZE - 1) / NODE_SIZE;
+		int slices = (int) Math.ceil(Math.sqrt(nodes));
+		int sliceSize = slices == 0 ? n : ((nodes + slices - 1) / slices)
+				* NODE_SIZE;
+		double[] keys = new double[n];
+		for (int i = 0; i < n; i++) {
+			int e = start + i;
+			keys[i] = mBounds[e * 4] + mBounds[e * 4 + 2];
+		}
+		sort(keys, start, 0, n - 1);
+		for (int s = 0; s < n; s += sliceSize) {
+			int end = Math.min(s + sliceSize, n);
+			for (int i = s; i < end; i++) {
+				int e = start + i;
+				keys[i] = mBounds[e * 4 + 1] + mBounds[e * 4 + 3];
+			}
+			sort(keys, start, s, end - 1);
+		}
+	}
+
+	/*
+	 * Quicksort of entries start + lo..start + hi by key, moving their
+	 * bounds and refs along with the keys.
+	 */
+	private void sort(double[] keys, int start, int lo, int hi) {
+		while (lo < hi) {
+			double pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot)
+					i++;
+				while (keys[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(keys, start, i++, j--);
+				}
+			}
+			// recurse into the smaller part to bound the stack depth
+			if (j - lo < hi - i) {
+				sort(keys, start, lo, j);
+				lo = i;
+			} else {
+				sort(keys, start, i, hi);
+				hi = j;
+			}
+		}
+	}
+
+	private void swap(double[] keys, int start, int i, int j) {
+		double key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+		int a = start + i;
+		int b = start + j;
+		for (int k = 0; k < 4; k++) {
+			double bound = mBounds[a * 4 + k];
+			mBounds[a * 4 + k] = mBounds[b * 4 + k];
+			mBounds[b * 4 + k] = bound;
+		}
+		int ref = mRefs[a];
+		mRefs[a] = mRefs[b];
+		mRefs[b] = ref;
+	}
+}
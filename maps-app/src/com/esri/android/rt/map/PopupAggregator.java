@@ -0,0 +1,121 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentTransaction;
+
+import com.arcgis.android.app.map.R;
+import com.esri.android.map.Layer;
+import com.esri.android.map.MapView;
+import com.esri.core.map.Graphic;
+
+/**
+ * Collects the identify results of a tap and hands them to its popup fragment
+ * in batches. Results arriving within a few frames of each other are added in
+ * one update, and the fragment is shown with a single transaction when the
+ * first batch arrives. All methods are called on the UI thread.
+ */
+public class PopupAggregator {
+
+	// results arriving within this many milliseconds are added together
+	private static final long WINDOW_MS = 50;
+
+	private final MapView mMapView;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ArrayList<PopupFragment.FeatureHandle> mPending = new ArrayList<PopupFragment.FeatureHandle>();
+	private PopupFragment mFragment;
+	private boolean mScheduled;
+
+	private final Runnable mFlush = new Runnable() {
+
+		@Override
+		public void run() {
+			mScheduled = false;
+			flush();
+		}
+	};
+
+	public PopupAggregator(MapView mapView) {
+		mMapView = mapView;
+	}
+
+	/**
+	 * Start collecting the results of a tap for a fragment, dropping those of
+	 * the previous tap that haven't been added yet.
+	 */
+	public void begin(PopupFragment fragment) {
+		cancel();
+		mFragment = fragment;
+	}
+
+	/**
+	 * Queue the features found in a layer or sub-layer.
+	 */
+	public void add(Layer layer, int subLayerId, Graphic[] graphics) {
+		for (Graphic graphic : graphics) {
+			mPending.add(new PopupFragment.FeatureHandle(layer, subLayerId,
+					graphic));
+		}
+		if (!mScheduled) {
+			mScheduled = true;
+			mHandler.postDelayed(mFlush, WINDOW_MS);
+		}
+	}
+
+	public void cancel() {
+		mHandler.removeCallbacks(mFlush);
+		mScheduled = false;
+		mPending.clear();
+	}
+
+	private void flush() {
+		if (mFragment == null || mPending.isEmpty())
+			return;
+		mFragment.addFeatures(mPending);
+		mPending.clear();
+		showPopup(mFragment);
+	}
+
+	// Display popup in a fragment
+	private void showPopup(PopupFragment fragment) {
+		if (fragment.isDisplayed())
+			return;
+
+		FragmentActivity activity = (FragmentActivity) mMapView.getContext();
+		FragmentTransaction transaction = activity.getSupportFragmentManager()
+				.beginTransaction();
+		transaction.setCustomAnimations(R.anim.popup_rotate_in,
+				R.anim.popup_rotate_out);
+		transaction.add(android.R.id.content, fragment, null);
+		transaction.addToBackStack(null);
+		transaction.commit();
+		fragment.setDisplayed(true);
+	}
+}
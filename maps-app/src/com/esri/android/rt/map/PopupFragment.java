@@ -25,14 +25,19 @@
 package com.esri.android.rt.map;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.v4.app.Fragment;
+import android.support.v4.view.PagerAdapter;
+import android.support.v4.view.ViewPager;
 import android.support.v4.view.ViewPager.OnPageChangeListener;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -46,22 +51,30 @@ import com.esri.android.map.MapView;
 import com.esri.android.map.ags.ArcGISFeatureLayer;
 import com.esri.android.map.ags.ArcGISPopupInfo;
 import com.esri.android.map.popup.Popup;
-import com.esri.android.map.popup.PopupContainer;
-import com.esri.android.map.popup.PopupContainerView;
+import com.esri.core.map.Graphic;
 import com.esri.core.map.popup.PopupInfo;
 
+/**
+ * Pages through the features found by a tap. Only the features are kept for
+ * every page, a popup is created for the page shown and the pages next to it
+ * and released when the user pages away, unless it is being edited.
+ */
 public class PopupFragment extends Fragment {
 	
 	public static final String MAPKEY = "mapkey";
 
-	private PopupContainer mPopupContainer;
-	private ArrayList<Popup> mPopups;
+	// features found, and the popups created for some of them by position
+	private ArrayList<FeatureHandle> mFeatures;
+	private SparseArray<Popup> mPopups;
+	private ViewPager mPager;
+	private PopupPagerAdapter mAdapter;
 	private MapView mMapView;
 	private boolean isInitialize, isDisplayed;
 	private OnEditListener mEditListener;
 
 	public PopupFragment() {
-		mPopups = new ArrayList<Popup>();
+		mFeatures = new ArrayList<FeatureHandle>();
+		mPopups = new SparseArray<Popup>();
 		isInitialize = false;
 		isDisplayed = false;
 	}
@@ -89,14 +102,8 @@ public class PopupFragment extends Fragment {
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
-		// Create popupcontainer and add popups to popupcontainer
-		mPopupContainer = new PopupContainer(mMapView);
-		if (mPopups != null && mPopups.size() > 0) {
-			for (Popup popup : mPopups) {
-				mPopupContainer.addPopup(popup);
-			}
+		if (mFeatures.size() > 0)
 			isInitialize = true;
-		}
 
 		// Fragment wants to add menu to action bar
 		setHasOptionsMenu(true);
@@ -105,31 +112,40 @@ public class PopupFragment extends Fragment {
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container,
 			Bundle savedInstanceState) {
-		PopupContainerView view = null;
-
-		if (mPopupContainer != null) {
-			view = mPopupContainer.getPopupContainerView();
-			view.setOnPageChangelistener(new OnPageChangeListener() {
+		mPager = new ViewPager(getActivity());
+		mPager.setBackgroundColor(Color.WHITE);
+		// Keep the popups of the pages next to the current one
+		mPager.setOffscreenPageLimit(1);
+		mAdapter = new PopupPagerAdapter();
+		mPager.setAdapter(mAdapter);
+		mPager.setOnPageChangeListener(new OnPageChangeListener() {
+
+			@Override
+			public void onPageSelected(int arg0) {
+				// Refresh menu items for the popup paged to
+				Activity activity = (Activity) mMapView.getContext();
+				activity.invalidateOptionsMenu();
+			}
 
-				@Override
-				public void onPageSelected(int arg0) {
+			@Override
+			public void onPageScrolled(int arg0, float arg1, int arg2) {
 
-				}
+			}
 
-				@Override
-				public void onPageScrolled(int arg0, float arg1, int arg2) {
-					// Refresh menu item while swipping popups
-					Activity activity = (Activity) mMapView.getContext();
-					activity.invalidateOptionsMenu();
-				}
+			@Override
+			public void onPageScrollStateChanged(int arg0) {
 
-				@Override
-				public void onPageScrollStateChanged(int arg0) {
+			}
+		});
+		return mPager;
+	}
 
-				}
-			});
-		}
-		return view;
+	@Override
+	public void onDestroyView() {
+		super.onDestroyView();
+		mPager = null;
+		mAdapter = null;
+		mPopups.clear();
 	}
 
 	@Override
@@ -140,10 +156,10 @@ public class PopupFragment extends Fragment {
 
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
-		if (mPopupContainer == null || mPopupContainer.getPopupCount() <= 0)
+		Popup popup = getCurrentPopup();
+		if (popup == null)
 			return true;
 
-		Popup popup = mPopupContainer.getCurrentPopup();
 		switch (item.getItemId()) {
 		case R.id.menu_camera:
 			startActivityForResult(new Intent(Intent.ACTION_PICK,
@@ -169,8 +185,8 @@ public class PopupFragment extends Fragment {
 		// Turn on/off menu items based on popup's edit capabilities
 		for (int i = 0; i < menu.size(); i++) {
 			MenuItem item = menu.getItem(i);
-			if (mPopupContainer != null) {
-				Popup popup = mPopupContainer.getCurrentPopup();
+			if (mPager != null) {
+				Popup popup = getCurrentPopup();
 				if (popup != null) {
 					if (popup.isEditMode()) {
 						if (item.getItemId() == R.id.menu_save
@@ -204,15 +220,36 @@ public class PopupFragment extends Fragment {
 		}
 	}
 
-	public void addPopup(Popup popup) {
-		// Add popup to the list
-		if (mPopups == null)
-			mPopups = new ArrayList<Popup>();
-		mPopups.add(popup);
-		// Add popup to popupcontainer if it has been created
-		if (mPopupContainer != null) {
-			mPopupContainer.addPopup(popup);
+	/**
+	 * Add features found by a tap, their popups are created when they are
+	 * paged to.
+	 */
+	void addFeatures(List<FeatureHandle> features) {
+		mFeatures.addAll(features);
+		if (mAdapter != null)
+			mAdapter.notifyDataSetChanged();
+	}
+
+	public int getFeatureCount() {
+		return mFeatures.size();
+	}
+
+	// Popup of the page shown
+	private Popup getCurrentPopup() {
+		if (mPager == null || mFeatures.isEmpty())
+			return null;
+		return getPopup(mPager.getCurrentItem());
+	}
+
+	private Popup getPopup(int position) {
+		Popup popup = mPopups.get(position);
+		if (popup == null) {
+			FeatureHandle feature = mFeatures.get(position);
+			popup = feature.layer.createPopup(mMapView, feature.subLayerId,
+					feature.graphic);
+			mPopups.put(position, popup);
 		}
+		return popup;
 	}
 
 	// Indicate if popupcontainer has been created
@@ -235,11 +272,11 @@ public class PopupFragment extends Fragment {
 
 	@Override
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
-		if (resultCode == Activity.RESULT_OK && data != null
-				&& mPopupContainer != null) {
+		Popup popup = getCurrentPopup();
+		if (resultCode == Activity.RESULT_OK && data != null && popup != null) {
 			// Add the selected media as attachment.
 			Uri selectedImage = data.getData();
-			mPopupContainer.getCurrentPopup().addAttachment(selectedImage);
+			popup.addAttachment(selectedImage);
 		}
 	}
 
@@ -284,6 +321,49 @@ public class PopupFragment extends Fragment {
 		return fl;
 	}
 
+	// A feature found by a tap and the layer to create its popup with
+	static class FeatureHandle {
+		final Layer layer;
+		final int subLayerId;
+		final Graphic graphic;
+
+		FeatureHandle(Layer layer, int subLayerId, Graphic graphic) {
+			this.layer = layer;
+			this.subLayerId = subLayerId;
+			this.graphic = graphic;
+		}
+	}
+
+	// Creates popup views for the pages near the current one
+	private class PopupPagerAdapter extends PagerAdapter {
+
+		@Override
+		public int getCount() {
+			return mFeatures.size();
+		}
+
+		@Override
+		public Object instantiateItem(ViewGroup container, int position) {
+			View view = getPopup(position).getLayout();
+			container.addView(view);
+			return view;
+		}
+
+		@Override
+		public void destroyItem(ViewGroup container, int position, Object object) {
+			container.removeView((View) object);
+			// Release the popup unless its edits aren't saved yet
+			Popup popup = mPopups.get(position);
+			if (popup != null && !popup.isEditMode())
+				mPopups.remove(position);
+		}
+
+		@Override
+		public boolean isViewFromObject(View view, Object object) {
+			return view == object;
+		}
+	}
+
 	// Listener to handle editing events
 	public interface OnEditListener {
 		public void onDelete(ArcGISFeatureLayer fl, Popup popup);
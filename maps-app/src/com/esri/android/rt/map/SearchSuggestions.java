@@ -0,0 +1,320 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+package com.esri.android.rt.map;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListPopupWindow;
+
+import com.esri.android.rt.location.GeocodeCache;
+import com.esri.android.rt.location.ServiceRegistry;
+import com.esri.core.geometry.SpatialReference;
+import com.esri.core.tasks.geocode.LocatorFindParameters;
+import com.esri.core.tasks.geocode.LocatorGeocodeResult;
+
+/**
+ * Shows address suggestions below the search box while the user types.
+ * Keystrokes are debounced, a lookup which is superseded by newer text is
+ * cancelled and results for a shorter prefix are filtered locally while the
+ * next lookup is pending. The geocoder matches whole queries loosely rather
+ * than completing prefixes, so the lookup is made even when the filtered
+ * results look complete. Prefix results are forgotten when the search area
+ * changes.
+ */
+public class SearchSuggestions implements TextWatcher, OnItemClickListener {
+
+	// wait for a pause in typing before asking the geocoder
+	private static final long DEBOUNCE_MS = 250;
+	// shortest text worth looking up
+	private static final int MIN_CHARS = 3;
+	// number of suggestions requested from the geocoder
+	static final int MAX_SUGGESTIONS = 5;
+	// number of prefixes remembered for local filtering
+	private static final int MAX_PREFIXES = 32;
+
+	private final Context mContext;
+	private final EditText mSearchText;
+	private final Listener mListener;
+	private final Handler mHandler = new Handler();
+	private final ListPopupWindow mPopup;
+	private final ArrayAdapter<String> mAdapter;
+	private final List<LocatorGeocodeResult> mShown = new ArrayList<LocatorGeocodeResult>();
+
+	// results by normalized prefix, least recently used first
+	private final Map<String, List<LocatorGeocodeResult>> mPrefixResults = new LinkedHashMap<String, List<LocatorGeocodeResult>>(
+			MAX_PREFIXES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, List<LocatorGeocodeResult>> eldest) {
+			return size() > MAX_PREFIXES;
+		}
+	};
+
+	private String mQuery = "";
+	// search area the prefix results were found in
+	private String mArea;
+	private SuggestTask mTask;
+	// set while the text is changed programmatically
+	private boolean mIgnoreChanges;
+
+	private final Runnable mLookup = new Runnable() {
+
+		@Override
+		public void run() {
+			lookup(mQuery);
+		}
+	};
+
+	public SearchSuggestions(Context context, EditText searchText,
+			Listener listener) {
+		mContext = context;
+		mSearchText = searchText;
+		mListener = listener;
+		mAdapter = new ArrayAdapter<String>(context,
+				android.R.layout.simple_list_item_1, new ArrayList<String>());
+		mPopup = new ListPopupWindow(context);
+		mPopup.setAnchorView(searchText);
+		mPopup.setAdapter(mAdapter);
+		mPopup.setInputMethodMode(ListPopupWindow.INPUT_METHOD_NEEDED);
+		mPopup.setOnItemClickListener(this);
+		searchText.addTextChangedListener(this);
+	}
+
+	@Override
+	public void beforeTextChanged(CharSequence s, int start, int count,
+			int after) {
+	}
+
+	@Override
+	public void onTextChanged(CharSequence s, int start, int before, int count) {
+	}
+
+	@Override
+	public void afterTextChanged(Editable s) {
+		if (mIgnoreChanges)
+			return;
+		mQuery = GeocodeCache.normalize(s.toString());
+		mHandler.removeCallbacks(mLookup);
+		cancelLookup();
+		if (mQuery.length() < MIN_CHARS) {
+			dismiss();
+			return;
+		}
+
+		// results found before the map moved don't apply
+		String area = mListener.createCacheKey("");
+		if (!area.equals(mArea)) {
+			mPrefixResults.clear();
+			mArea = area;
+		}
+
+		// answer from an earlier prefix straight away
+		List<LocatorGeocodeResult> cached = mPrefixResults.get(mQuery);
+		if (cached != null) {
+			show(cached);
+			return;
+		}
+		String prefix = longestCachedPrefix(mQuery);
+		if (prefix != null) {
+			// an interim answer until the lookup of the whole text returns
+			show(filter(mPrefixResults.get(prefix), mQuery));
+		}
+		mHandler.postDelayed(mLookup, DEBOUNCE_MS);
+	}
+
+	@Override
+	public void onItemClick(AdapterView<?> parent, View view, int position,
+			long id) {
+		if (position >= mShown.size())
+			return;
+		LocatorGeocodeResult result = mShown.get(position);
+		mIgnoreChanges = true;
+		mSearchText.setText(result.getAddress());
+		mIgnoreChanges = false;
+		dismiss();
+		mListener.onSuggestionSelected(result);
+	}
+
+	/**
+	 * Stop any pending lookup and hide the suggestions, e.g. when the search
+	 * is submitted.
+	 */
+	public void dismiss() {
+		mHandler.removeCallbacks(mLookup);
+		cancelLookup();
+		if (mPopup.isShowing())
+			mPopup.dismiss();
+	}
+
+	private void cancelLookup() {
+		if (mTask != null) {
+			mTask.cancel(true);
+			mTask = null;
+		}
+	}
+
+	private void lookup(String query) {
+		cancelLookup();
+		mTask = new SuggestTask(query, mArea,
+				mListener.createFindParameters(query),
+				mListener.createCacheKey(query),
+				mListener.getSearchSpatialReference());
+		mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+	private String longestCachedPrefix(String query) {
+		String best = null;
+		for (String prefix : mPrefixResults.keySet()) {
+			if (query.startsWith(prefix)
+					&& (best == null || prefix.length() > best.length()))
+				best = prefix;
+		}
+		return best;
+	}
+
+	/*
+	 * Keep the results whose address contains every word of the query.
+	 */
+	private static List<LocatorGeocodeResult> filter(
+			List<LocatorGeocodeResult> results, String query) {
+		String[] words = query.split(" ");
+		List<LocatorGeocodeResult> filtered = new ArrayList<LocatorGeocodeResult>();
+		for (LocatorGeocodeResult result : results) {
+			String address = GeocodeCache.normalize(result.getAddress());
+			boolean matches = true;
+			for (String word : words) {
+				if (address.indexOf(word) < 0) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches)
+				filtered.add(result);
+		}
+		return filtered;
+	}
+
+	private void show(List<LocatorGeocodeResult> results) {
+		mShown.clear();
+		mShown.addAll(results);
+		List<String> addresses = new ArrayList<String>(results.size());
+		for (LocatorGeocodeResult result : results) {
+			addresses.add(result.getAddress());
+		}
+		mAdapter.setNotifyOnChange(false);
+		mAdapter.clear();
+		mAdapter.addAll(addresses);
+		mAdapter.notifyDataSetChanged();
+		if (results.isEmpty()) {
+			if (mPopup.isShowing())
+				mPopup.dismiss();
+		} else if (!mPopup.isShowing()) {
+			mPopup.show();
+		}
+	}
+
+	/**
+	 * Supplies search parameters for the current map and receives the chosen
+	 * suggestion.
+	 */
+	public interface Listener {
+		public LocatorFindParameters createFindParameters(String address);
+
+		/**
+		 * @return a key of the address and search area, for an empty address
+		 *         a key of the search area alone
+		 */
+		public String createCacheKey(String address);
+
+		public SpatialReference getSearchSpatialReference();
+
+		public void onSuggestionSelected(LocatorGeocodeResult result);
+	}
+
+	private class SuggestTask extends
+			AsyncTask<Void, Void, List<LocatorGeocodeResult>> {
+
+		private final String mPrefix;
+		private final String mTaskArea;
+		private final LocatorFindParameters mParams;
+		private final String mCacheKey;
+		private final SpatialReference mOutSR;
+
+		SuggestTask(String prefix, String area, LocatorFindParameters params,
+				String cacheKey, SpatialReference outSR) {
+			mPrefix = prefix;
+			mTaskArea = area;
+			mOutSR = outSR;
+			mParams = params;
+			// suggestions ask for more locations than a search
+			mCacheKey = cacheKey + "|suggest";
+			mParams.setMaxLocations(MAX_SUGGESTIONS);
+		}
+
+		@Override
+		protected List<LocatorGeocodeResult> doInBackground(Void... params) {
+			GeocodeCache cache = GeocodeCache.getInstance(mContext);
+			List<LocatorGeocodeResult> results = cache.get(mCacheKey);
+			if (results != null || isCancelled())
+				return results;
+			try {
+				results = ServiceRegistry.getInstance(mContext)
+						.getGeocodeProvider().find(mParams, mOutSR);
+				cache.put(mCacheKey, results);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return results;
+		}
+
+		@Override
+		protected void onPostExecute(List<LocatorGeocodeResult> results) {
+			if (mTask == this)
+				mTask = null;
+			if (results == null)
+				return;
+			if (mTaskArea.equals(mArea))
+				mPrefixResults.put(mPrefix, results);
+			// ignore answers for text the user has already changed
+			if (mPrefix.equals(mQuery))
+				show(results);
+		}
+	}
+}
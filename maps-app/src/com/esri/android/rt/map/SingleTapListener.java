@@ -24,318 +24,411 @@
 
 package com.esri.android.rt.map;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
 
-import android.os.AsyncTask;
-import android.support.v4.app.FragmentActivity;
-import android.support.v4.app.FragmentTransaction;
-
-import com.arcgis.android.app.map.R;
-import com.esri.android.map.GroupLayer;
 import com.esri.android.map.Layer;
 import com.esri.android.map.MapView;
-import com.esri.android.map.ags.ArcGISDynamicMapServiceLayer;
 import com.esri.android.map.ags.ArcGISFeatureLayer;
-import com.esri.android.map.ags.ArcGISLayerInfo;
-import com.esri.android.map.ags.ArcGISTiledMapServiceLayer;
 import com.esri.android.map.event.OnSingleTapListener;
-import com.esri.android.map.popup.Popup;
 import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryEngine;
+import com.esri.core.geometry.MultiPath;
 import com.esri.core.geometry.SpatialReference;
 import com.esri.core.map.FeatureSet;
+import com.esri.core.map.Field;
 import com.esri.core.map.Graphic;
-import com.esri.core.map.popup.PopupInfo;
+import com.esri.core.tasks.ags.identify.IdentifyParameters;
+import com.esri.core.tasks.ags.identify.IdentifyResult;
+import com.esri.core.tasks.ags.identify.IdentifyTask;
 import com.esri.core.tasks.ags.query.Query;
 import com.esri.core.tasks.ags.query.QueryTask;
 
 public class SingleTapListener implements OnSingleTapListener {
 
 	private static final long serialVersionUID = 1L;
+	private static final String TAG = "SingleTapListener";
+	// features shown per sub-layer
+	private static final int MAX_FEATURES = 10;
+	// how long a map service that failed to identify is queried per sub-layer
+	private static final long IDENTIFY_RETRY_MILLIS = 10 * 60 * 1000;
+	// elapsed realtime when identifying a map service last failed, by url
+	private static final Map<String, Long> sIdentifyFailures = Collections
+			.synchronizedMap(new HashMap<String, Long>());
+	// field types of sub-layers by query url, learnt from their queries
+	private static final Map<String, Map<String, Integer>> sFieldTypes = Collections
+			.synchronizedMap(new HashMap<String, Map<String, Integer>>());
+	// query urls of sub-layers whose identify results aren't raw field
+	// values, always queried
+	private static final Set<String> sIdentifyUnusable = Collections
+			.synchronizedSet(new HashSet<String>());
 	private MapView mMapView;
 	private PopupFragment mPopupFragment;
 	private int tolerance = 40;
+	private transient IdentifyCoordinator mIdentify;
+	private transient PopupAggregator mPopups;
+	private transient LayerTable mLayerTable;
+	// estimated bytes of the features received for the tap, and of the
+	// fields left out of them
+	private long mTapBytes;
+	private long mTapBytesSaved;
 
 	public SingleTapListener(MapView map) {
 		this.mMapView = map;
+		mPopups = new PopupAggregator(map);
+		mLayerTable = new LayerTable();
+		mIdentify = new IdentifyCoordinator(new IdentifyCoordinator.Callback() {
+
+			@Override
+			public void onResult(Layer layer, int subLayerId,
+					Graphic[] graphics) {
+				measure(layer, subLayerId, graphics);
+				// Add features to the fragment with the others arriving now,
+				// their popups are created when shown
+				mPopups.add(layer, subLayerId, graphics);
+			}
+		});
 	}
 
 	@Override
 	public void onSingleTap(float x, float y) {
 
 		if (mMapView.isLoaded()) {
-			// Loop through each layer in the webmap
+			// Stop querying for the previous tap
+			mIdentify.begin();
+			mTapBytes = 0;
+			mTapBytesSaved = 0;
 			mPopupFragment = PopupFragment.newInstance(mMapView);
+			mPopups.begin(mPopupFragment);
 			Envelope env = new Envelope(mMapView.toMapPoint(x, y), tolerance
 					* mMapView.getResolution(), tolerance
 					* mMapView.getResolution());
-			Layer[] layers = mMapView.getLayers();
-			for (Layer layer : layers) {
-				// If the layer has not been initialized or is invisible, do
-				// nothing.
-				if (!layer.isInitialized() || !layer.isVisible())
-					continue;
-
-				if (layer instanceof GroupLayer) {
-					Layer[] sublayers = ((GroupLayer) layer).getLayers();
-					if (sublayers != null) {
-						for (Layer flayer : sublayers) {
-							ArcGISFeatureLayer featureLayer = (ArcGISFeatureLayer) flayer;
-							checkAndQueryFeatureLayer(x, y, featureLayer);
-						}
-					}
-				} else if (layer instanceof ArcGISFeatureLayer) {
+			// Loop through the layers in the webmap which have a popup
+			// definition, are visible and are in scale range
+			mLayerTable.update(mMapView.getLayers());
+			int count = mLayerTable.filter(mMapView.getScale());
+			int i = 0;
+			while (i < count) {
+				int entry = mLayerTable.getEligible(i);
+				Layer layer = mLayerTable.getLayer(entry);
+				if (mLayerTable.getKind(entry) == LayerTable.KIND_FEATURE_LAYER) {
 					// Query feature layer and display popups
-					ArcGISFeatureLayer featureLayer = (ArcGISFeatureLayer) layer;
-					checkAndQueryFeatureLayer(x, y, featureLayer);
-				} else if (layer instanceof ArcGISDynamicMapServiceLayer
-						|| layer instanceof ArcGISTiledMapServiceLayer) {
-					// Query dynamic map service layer and display popups.
-					ArcGISLayerInfo[] layerinfos;
-					// Retrieve layer info for each sub-layer of the dynamic map
-					// service layer.
-					if (layer instanceof ArcGISDynamicMapServiceLayer)
-						layerinfos = ((ArcGISDynamicMapServiceLayer) layer)
-								.getAllLayers();
-					else
-						layerinfos = ((ArcGISTiledMapServiceLayer) layer)
-								.getAllLayers();
-
-					if (layerinfos == null)
-						continue;
-
-					// Loop through each sub-layer
-					for (ArcGISLayerInfo layerInfo : layerinfos) {
-						// Obtain PopupInfo for sub-layer.
-						// Has sublayer?
-						ArcGISLayerInfo[] children = layerInfo.getLayers();
-						if (children != null && children.length > 0)
-							continue;
-
-						checkAndQueryMapServiceSubLayer(x, y, env, layer,
-								layerInfo);
-
-					}
+					identifyFeatureLayer(env, (ArcGISFeatureLayer) layer,
+							mLayerTable.getPriority(entry));
+					i++;
+					continue;
+				}
+				// Identify the sub-layers of a map service together, the
+				// first is drawn on top
+				int end = i + 1;
+				while (end < count
+						&& mLayerTable.getLayer(mLayerTable.getEligible(end)) == layer)
+					end++;
+				int[] ids = new int[end - i];
+				String[] urls = new String[ids.length];
+				String[][] outFields = new String[ids.length][];
+				for (int j = 0; j < ids.length; j++) {
+					int subLayer = mLayerTable.getEligible(i + j);
+					ids[j] = mLayerTable.getSubLayerId(subLayer);
+					urls[j] = mLayerTable.getQueryUrl(subLayer);
+					outFields[j] = mLayerTable.getOutFields(subLayer);
 				}
+				identifyMapService(x, y, env, layer, ids, urls, outFields,
+						mLayerTable.getPriority(entry));
+				i = end;
 			}
 		}
 	}
 
-	private boolean checkScaleRange(double layerMaxScale, double layerMinScale,
-			PopupInfo popupInfo) {
-		// Check if the sub-layer is within the scale range
-
-		boolean inScale = false;
-		double maxScale = (layerMaxScale != 0) ? layerMaxScale
-				: (popupInfo == null ? 0 : popupInfo.getMaxScale());
-		double minScale = (layerMinScale != 0) ? layerMinScale
-				: (popupInfo == null ? 0 : popupInfo.getMinScale());
-
-		if ((maxScale == 0 || mMapView.getScale() > maxScale)
-				&& (minScale == 0 || mMapView.getScale() < minScale))
-			inScale = true;
-
-		return inScale;
+	private void identifyFeatureLayer(final Envelope env,
+			final ArcGISFeatureLayer featureLayer, int priority) {
+		final Context context = mMapView.getContext();
+		mIdentify.submit(priority, featureLayer,
+				new IdentifyCoordinator.Identify() {
+
+					@Override
+					public Map<Integer, Graphic[]> identify() {
+						return Collections.singletonMap(Integer.valueOf(0),
+								queryFeatureLayer(env, featureLayer,
+										EditJournal.getInstance(context)));
+					}
+				});
 	}
 
-	private void checkAndQueryFeatureLayer(float x, float y,
-			ArcGISFeatureLayer featureLayer) {
-		if (featureLayer.getPopupInfo() != null
-				&& checkScaleRange(featureLayer.getMaxScale(),
-						featureLayer.getMinScale(), featureLayer.getPopupInfo())) {
-			// Query feature layer which is associated with a popup definition.
-			new RunQueryFeatureLayerTask(x, y, tolerance).execute(featureLayer);
-		}
+	private void identifyMapService(float x, float y, final Envelope env,
+			final Layer layer, final int[] ids, final String[] urls,
+			final String[][] outFields, int priority) {
+		// Identify the sub-layers at once, in the map's current view
+		final String url = layer.getUrl();
+		final IdentifyParameters params = new IdentifyParameters();
+		params.setGeometry(mMapView.toMapPoint(x, y));
+		params.setSpatialReference(mMapView.getSpatialReference());
+		Envelope extent = new Envelope();
+		mMapView.getExtent().queryEnvelope(extent);
+		params.setMapExtent(extent);
+		params.setMapWidth(mMapView.getWidth());
+		params.setMapHeight(mMapView.getHeight());
+		params.setDPI(96);
+		params.setTolerance(tolerance / 2);
+		params.setLayerMode(IdentifyParameters.ALL_LAYERS);
+		// Popups of map services only show attributes, leave the geometry
+		// out of the response
+		params.setReturnGeometry(false);
+		// Generalize queried geometry to the pixel size of the map
+		final double maxOffset = mMapView.getResolution();
+
+		mIdentify.submit(priority, layer, new IdentifyCoordinator.Identify() {
+
+			@Override
+			public Map<Integer, Graphic[]> identify() throws Exception {
+				Map<Integer, Graphic[]> results = null;
+				// Identify the sub-layers whose field types are known from a
+				// query and whose results weren't rejected before, query the
+				// others straight away
+				List<Integer> identifiable = new ArrayList<Integer>();
+				if (url != null && !identifyFailedRecently(url)) {
+					for (int i = 0; i < ids.length; i++) {
+						if (sFieldTypes.containsKey(urls[i])
+								&& !sIdentifyUnusable.contains(urls[i]))
+							identifiable.add(Integer.valueOf(i));
+					}
+				}
+				if (!identifiable.isEmpty()) {
+					int[] identifyIds = new int[identifiable.size()];
+					for (int i = 0; i < identifyIds.length; i++)
+						identifyIds[i] = ids[identifiable.get(i).intValue()];
+					params.setLayers(identifyIds);
+					try {
+						results = identifyMapServiceLayers(url, params, ids,
+								identifyIds, urls, outFields);
+						sIdentifyFailures.remove(url);
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						// Query the sub-layers for a while
+						Log.w(TAG, "identify failed, querying " + url, e);
+						sIdentifyFailures.put(url,
+								Long.valueOf(SystemClock.elapsedRealtime()));
+					}
+				}
+				if (results == null)
+					results = new LinkedHashMap<Integer, Graphic[]>();
+				// Query the sub-layers whose identify results weren't usable
+				for (int i = 0; i < ids.length; i++) {
+					Integer id = Integer.valueOf(ids[i]);
+					if (results.get(id) == null)
+						results.put(id, queryMapServiceLayer(urls[i], env,
+								layer.getSpatialReference(), outFields[i],
+								maxOffset));
+				}
+				return results;
+			}
+		});
 	}
 
-	private boolean checkIfLayerHasVisibleParents(ArcGISLayerInfo layerInfo) {
-		// Check if a sub-layer is visible.
-		boolean isVisible = true;
-		ArcGISLayerInfo info = layerInfo;
-		while (info != null && info.isVisible())
-			info = info.getParentLayer();
-		// Skip invisible sub-layer
-		if (info != null && !info.isVisible())
-			isVisible = false;
-
-		return isVisible;
-
+	private static boolean identifyFailedRecently(String url) {
+		Long failed = sIdentifyFailures.get(url);
+		return failed != null
+				&& SystemClock.elapsedRealtime() - failed.longValue() < IDENTIFY_RETRY_MILLIS;
 	}
 
-	private void checkAndQueryMapServiceSubLayer(float x, float y,
-			Envelope env, Layer layer, ArcGISLayerInfo layerInfo) {
-
-		int subLayerId = layerInfo.getId();
-		PopupInfo popupInfo = layer.getPopupInfo(subLayerId);
-
-		if (checkIfLayerHasVisibleParents(layerInfo)
-				&& popupInfo != null
-				&& checkScaleRange(layerInfo.getMaxScale(),
-						layerInfo.getMinScale(), popupInfo)) {
-			// Query sub-layer which is associated with a popup definition and
-			// is visible and in scale range.
-			String url = layer.getQueryUrl(subLayerId);
-			if (url == null || url.length() < 1)
-				url = layer.getUrl() + "/" + subLayerId;
-			new RunQueryDynamicLayerTask(env, layer, subLayerId, popupInfo,
-					layer.getSpatialReference()).execute(url);
+	// Identify sub-layers of a map service by IdentifyTask. Sub-layers whose
+	// results aren't raw field values are marked to be queried from now and
+	// map to null, as do sub-layers that weren't identified.
+	private static Map<Integer, Graphic[]> identifyMapServiceLayers(
+			String url, IdentifyParameters params, int[] ids,
+			int[] identifyIds, String[] urls, String[][] outFields)
+			throws Exception {
+		IdentifyTask identifyTask = new IdentifyTask(url);
+		IdentifyResult[] results = identifyTask.execute(params);
+
+		// Split the results by sub-layer, keeping the drawing order
+		Map<Integer, List<Graphic>> groups = new LinkedHashMap<Integer, List<Graphic>>();
+		Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+		for (int i = 0; i < ids.length; i++) {
+			indexes.put(Integer.valueOf(ids[i]), Integer.valueOf(i));
+			groups.put(Integer.valueOf(ids[i]), null);
 		}
-
-	}
-
-	// Display popup in a fragment
-	private void showPopup(PopupFragment fragment) {
-		if (fragment.isDisplayed())
-			return;
-
-		FragmentActivity activity = (FragmentActivity) mMapView.getContext();
-		FragmentTransaction transaction = activity.getSupportFragmentManager()
-				.beginTransaction();
-		transaction.setCustomAnimations(R.anim.popup_rotate_in,
-				R.anim.popup_rotate_out);
-		transaction.add(android.R.id.content, fragment, null);
-		transaction.addToBackStack(null);
-		transaction.commit();
-		fragment.setDisplayed(true);
-	}
-
-	// Query dynamic map service layer by QueryTask
-	private class RunQueryDynamicLayerTask extends
-			AsyncTask<String, Void, FeatureSet> {
-
-		private Envelope env;
-
-		private SpatialReference sr;
-
-		private Layer layer;
-
-		private int subLayerId;
-
-		private PopupInfo popupInfo;
-
-		public RunQueryDynamicLayerTask(Envelope env, Layer layer,
-				int subLayerId, PopupInfo popupInfo, SpatialReference sr) {
-			super();
-			this.env = env;
-			this.sr = sr;
-			this.layer = layer;
-			this.subLayerId = subLayerId;
-			this.popupInfo = popupInfo;
-		}
-
-		@Override
-		protected FeatureSet doInBackground(String... urls) {
-
-			for (String url : urls) {
-				if (popupInfo == null)
+		for (int id : identifyIds)
+			groups.put(Integer.valueOf(id), new ArrayList<Graphic>());
+		if (results != null) {
+			for (IdentifyResult result : results) {
+				Integer id = Integer.valueOf(result.getLayerId());
+				List<Graphic> group = groups.get(id);
+				if (group == null || group.size() == MAX_FEATURES)
+					continue;
+				int i = indexes.get(id).intValue();
+				Map<String, Object> attributes = rawAttributes(
+						result.getAttributes(), outFields[i],
+						sFieldTypes.get(urls[i]));
+				if (attributes == null) {
+					// Query this sub-layer instead, now and from now on
+					sIdentifyUnusable.add(urls[i]);
+					groups.put(id, null);
 					continue;
-
-				// Retrieve graphics within the envelope by query.
-				Query query = new Query();
-				query.setInSpatialReference(sr);
-				query.setOutSpatialReference(sr);
-				query.setGeometry(env);
-				query.setMaxFeatures(10);
-				query.setOutFields(new String[] { "*" });
-				query.setReturnGeometry(true);
-
-				try {
-					QueryTask queryTask;
-					queryTask = new QueryTask(url);
-					FeatureSet results = queryTask.execute(query);
-					return results;
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
+				group.add(new Graphic(result.getGeometry(), null, attributes));
 			}
-			return null;
 		}
+		Map<Integer, Graphic[]> graphics = new LinkedHashMap<Integer, Graphic[]>();
+		for (Map.Entry<Integer, List<Graphic>> group : groups.entrySet()) {
+			graphics.put(group.getKey(), group.getValue() == null ? null
+					: group.getValue().toArray(new Graphic[0]));
+		}
+		return graphics;
+	}
 
-		@Override
-		protected void onPostExecute(final FeatureSet result) {
-			// Validate parameter.
-			if (result == null) {
-				return;
-			}
-			Graphic[] graphics = result.getGraphics();
-			if (graphics == null || graphics.length == 0) {
-				return;
+	/*
+	 * Map services may key identify attributes by field alias and format their
+	 * values as text. Return the attributes the popup shows when they are
+	 * keyed by field name and only text fields hold strings, or null.
+	 */
+	static Map<String, Object> rawAttributes(Map<String, Object> attributes,
+			String[] outFields, Map<String, Integer> fieldTypes) {
+		if (attributes == null || fieldTypes == null)
+			return null;
+		Map<String, Object> fields = new HashMap<String, Object>(
+				attributes.size());
+		for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			Integer type = fieldTypes.get(attribute.getKey());
+			if (type == null) {
+				// Only the out fields were queried, other fields are unknown
+				if (outFields == null)
+					return null;
+				continue;
 			}
-
-			for (Graphic gr : graphics) {
-				// Create popup
-				Popup popup = layer.createPopup(mMapView, subLayerId, gr);
-				// Add popup to frament
-				mPopupFragment.addPopup(popup);
-				// Display popup
-				showPopup(mPopupFragment);
+			if (attribute.getValue() instanceof String
+					&& !isTextField(type.intValue()))
+				return null;
+			fields.put(attribute.getKey(), attribute.getValue());
+		}
+		if (outFields != null) {
+			for (String field : outFields) {
+				if (!fields.containsKey(field))
+					return null;
 			}
 		}
+		return fields;
 	}
 
-	// Query feature layer by hit test
-	private class RunQueryFeatureLayerTask extends
-			AsyncTask<ArcGISFeatureLayer, Void, Graphic[]> {
-
-		private int tolerance;
-
-		private float x;
-
-		private float y;
-
-		private ArcGISFeatureLayer featureLayer;
-
-		private PopupInfo popupInfo;
-
-		public RunQueryFeatureLayerTask(float x, float y, int tolerance) {
-			super();
-			this.x = x;
-			this.y = y;
-			this.tolerance = tolerance;
-		}
-
-		@Override
-		protected Graphic[] doInBackground(ArcGISFeatureLayer... params) {
-			for (ArcGISFeatureLayer featureLayer : params) {
-				// Get popupinfo
-				this.featureLayer = featureLayer;
-				popupInfo = featureLayer.getPopupInfo();
-				if (popupInfo == null)
-					continue;
+	private static boolean isTextField(int type) {
+		return type == Field.esriFieldTypeString
+				|| type == Field.esriFieldTypeGUID
+				|| type == Field.esriFieldTypeGlobalID
+				|| type == Field.esriFieldTypeXML;
+	}
 
-				// Retrieve graphic ids near the point.
-				int[] ids = featureLayer.getGraphicIDs(x, y, tolerance);
-				if (ids != null && ids.length > 0) {
-					ArrayList<Graphic> graphics = new ArrayList<Graphic>();
-					for (int id : ids) {
-						// Obtain graphic based on the id.
-						Graphic g = featureLayer.getGraphic(id);
-						if (g == null)
-							continue;
-						graphics.add(g);
-					}
-					// Return an array of graphics near the point.
-					return graphics.toArray(new Graphic[0]);
+	/*
+	 * Add the estimated size of features received from a map service to the
+	 * tap's payload, and the size of the fields that were left out, assuming
+	 * they are as large as the fields received.
+	 */
+	private void measure(Layer layer, int subLayerId, Graphic[] graphics) {
+		int entry = mLayerTable.find(layer, subLayerId);
+		if (entry < 0
+				|| mLayerTable.getKind(entry) != LayerTable.KIND_SUB_LAYER)
+			return;
+		int fieldCount = mLayerTable.getFieldCount(entry);
+		for (Graphic graphic : graphics) {
+			Map<String, Object> attributes = graphic.getAttributes();
+			int fields = 0;
+			int fieldBytes = 0;
+			if (attributes != null) {
+				for (Map.Entry<String, Object> attribute : attributes
+						.entrySet()) {
+					// "name":value,
+					fieldBytes += attribute.getKey().length()
+							+ String.valueOf(attribute.getValue()).length() + 4;
+					fields++;
 				}
 			}
-			return null;
+			int bytes = fieldBytes;
+			Geometry geometry = graphic.getGeometry();
+			if (geometry instanceof MultiPath)
+				// two coordinates of about 18 characters per vertex
+				bytes += ((MultiPath) geometry).getPointCount() * 40;
+			else if (geometry != null)
+				bytes += 40;
+			mTapBytes += bytes;
+			if (fields > 0 && fieldCount > fields)
+				mTapBytesSaved += (long) (fieldCount - fields) * fieldBytes
+						/ fields;
 		}
+		Log.d(TAG, "tap payload ~" + mTapBytes + " bytes, ~" + mTapBytesSaved
+				+ " bytes of fields saved");
+	}
 
-		@Override
-		protected void onPostExecute(Graphic[] graphics) {
-			// Validate parameter.
-			if (graphics == null || graphics.length == 0) {
-				return;
-			}
+	// Query dynamic map service layer by QueryTask
+	private static Graphic[] queryMapServiceLayer(String url, Envelope env,
+			SpatialReference sr, String[] outFields, double maxOffset)
+			throws Exception {
+		// Retrieve graphics within the envelope by query.
+		Query query = new Query();
+		query.setInSpatialReference(sr);
+		query.setOutSpatialReference(sr);
+		query.setGeometry(env);
+		query.setMaxFeatures(MAX_FEATURES);
+		// Only the fields the popup shows
+		query.setOutFields(outFields == null ? new String[] { "*" }
+				: outFields);
+		query.setReturnGeometry(true);
+		query.setMaxAllowableOffset(maxOffset);
+
+		QueryTask queryTask = new QueryTask(url);
+		FeatureSet results = queryTask.execute(query);
+		if (results == null)
+			return null;
+		// Remember the field types to check identify results against
+		if (results.getFields() != null && !sFieldTypes.containsKey(url)) {
+			Map<String, Integer> types = new HashMap<String, Integer>();
+			for (Field field : results.getFields())
+				types.put(field.getName(), Integer.valueOf(field.getFieldType()));
+			sFieldTypes.put(url, types);
+		}
+		return results.getGraphics();
+	}
 
-			for (Graphic gr : graphics) {
-				// Create popup
-				Popup popup = featureLayer.createPopup(mMapView, 0, gr);
-				// Add popup to fragment
-				mPopupFragment.addPopup(popup);
-				// Display popup
-				showPopup(mPopupFragment);
-			}
+	// Query feature layer by hit test
+	private static Graphic[] queryFeatureLayer(Envelope env,
+			ArcGISFeatureLayer featureLayer, EditJournal journal) {
+		// Retrieve graphic ids whose envelopes are near the point from the
+		// layer's spatial index.
+		int[] ids = FeatureLayerIndex.forLayer(featureLayer).search(
+				featureLayer, env.getXMin(), env.getYMin(), env.getXMax(),
+				env.getYMax());
+		if (ids.length == 0)
+			return null;
+		SpatialReference sr = featureLayer.getSpatialReference();
+		ArrayList<Graphic> graphics = new ArrayList<Graphic>();
+		for (int id : ids) {
+			// Obtain graphic based on the id.
+			Graphic g = featureLayer.getGraphic(id);
+			if (g == null)
+				continue;
+			// Lines and areas can have envelopes much larger than
+			// themselves, make sure the geometry is near the point.
+			Geometry geometry = g.getGeometry();
+			if (geometry.getType() != Geometry.Type.POINT
+					&& !GeometryEngine.intersects(env, geometry, sr))
+				continue;
+			// Show the edits saved but not yet on the server
+			graphics.add(journal.withPendingEdits(featureLayer.getUrl(),
+					featureLayer.getObjectIdField(), g));
 		}
+		// Return an array of graphics near the point.
+		return graphics.toArray(new Graphic[0]);
 	}
 
 }
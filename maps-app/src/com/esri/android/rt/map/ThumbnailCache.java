@@ -0,0 +1,272 @@
+/* Copyright 1995-2013 Esri
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For additional information, contact:
+ * Environmental Systems Research Institute, Inc.
+ * Attn: Contracts Dept
+ * 380 New York Street
+ * Redlands, California, USA 92373
+ *
+ * email: contracts@esri.com
+ *
+ */
+
+
+package com.esri.android.rt.map;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.arcgis.android.app.map.R;
+import com.esri.core.portal.PortalItem;
+
+/**
+ * Caches the thumbnails of portal items shown in the basemap gallery. The
+ * thumbnails downloaded from the portal are kept on disk by item id and
+ * modified time, so a changed item is fetched again. Decoded bitmaps are
+ * downsampled to the size of a gallery cell and kept in a memory cache
+ * bounded by their size in bytes. Thumbnails can be loaded in parallel on a
+ * small pool of background threads.
+ */
+public class ThumbnailCache {
+
+	private static final String TAG = "ThumbnailCache";
+
+	// share of the heap the decoded thumbnails may use
+	private static final int MEMORY_FRACTION = 16;
+	// thumbnails downloaded at once
+	private static final int FETCH_THREADS = 4;
+
+	public interface Callback {
+		/**
+		 * Called on the UI thread when the thumbnail of an item has been
+		 * loaded.
+		 */
+		void onThumbnail(PortalItem item, Bitmap bitmap);
+	}
+
+	private static ThumbnailCache sInstance;
+
+	private final LruCache<String, Bitmap> mMemory;
+	private final File mDiskDir;
+	private final int mWidth;
+	private final int mHeight;
+	private final ExecutorService mFetchExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private ThumbnailCache(Context context) {
+		int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime()
+				.maxMemory() / MEMORY_FRACTION);
+		mMemory = new LruCache<String, Bitmap>(maxBytes) {
+
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return bitmap.getByteCount();
+			}
+		};
+		mDiskDir = new File(context.getCacheDir(), "thumbnails");
+		if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+			Log.w(TAG, "unable to create " + mDiskDir);
+		}
+		Resources resources = context.getResources();
+		mWidth = resources
+				.getDimensionPixelSize(R.dimen.basemap_thumbnail_width);
+		mHeight = resources
+				.getDimensionPixelSize(R.dimen.basemap_thumbnail_height);
+		mFetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS,
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "ThumbnailFetch #" + mCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public static synchronized ThumbnailCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ThumbnailCache(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private static String keyFor(PortalItem item) {
+		return item.getItemId() + "_" + item.getModified();
+	}
+
+	/**
+	 * @return the thumbnail of an item if it is in memory, otherwise null
+	 */
+	public Bitmap getCached(PortalItem item) {
+		return mMemory.get(keyFor(item));
+	}
+
+	/**
+	 * Get the thumbnail of an item from memory, disk or the portal. Performs
+	 * network and file I/O so must not be called on the UI thread.
+	 *
+	 * @return the thumbnail or null if the item has none
+	 */
+	public Bitmap get(PortalItem item) throws Exception {
+		String key = keyFor(item);
+		Bitmap bitmap = mMemory.get(key);
+		if (bitmap != null)
+			return bitmap;
+
+		File file = new File(mDiskDir, key);
+		if (!file.exists()) {
+			byte[] data = item.fetchThumbnail();
+			if (data == null)
+				return null;
+			write(item.getItemId(), file, data);
+			if (!file.exists()) {
+				// disk unavailable, decode what was downloaded
+				bitmap = decode(data);
+				if (bitmap != null)
+					mMemory.put(key, bitmap);
+				return bitmap;
+			}
+		}
+		bitmap = decode(file);
+		if (bitmap != null)
+			mMemory.put(key, bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Load the thumbnail of an item on a background thread. The callback is
+	 * not called if the item has no thumbnail or it can't be fetched.
+	 */
+	public void load(final PortalItem item, final Callback callback) {
+		mFetchExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final Bitmap bitmap;
+				try {
+					bitmap = get(item);
+				} catch (Exception e) {
+					Log.w(TAG, "unable to fetch thumbnail of "
+							+ item.getItemId(), e);
+					return;
+				}
+				if (bitmap == null)
+					return;
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						callback.onThumbnail(item, bitmap);
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * Smallest power of two reduction that still covers a gallery cell.
+	 */
+	private int sampleSize(int width, int height) {
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= mWidth
+				&& height / (sampleSize * 2) >= mHeight)
+			sampleSize *= 2;
+		return sampleSize;
+	}
+
+	private Bitmap decode(File file) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getPath(), options);
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+		if (bitmap == null) {
+			// corrupt, fetch it again next time
+			file.delete();
+		}
+		return bitmap;
+	}
+
+	private Bitmap decode(byte[] data) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	}
+
+	/*
+	 * Store a downloaded thumbnail, removing those of earlier versions of the
+	 * item.
+	 */
+	private void write(String itemId, File file, byte[] data) {
+		File[] stale = mDiskDir.listFiles();
+		if (stale != null) {
+			for (File old : stale) {
+				if (old.getName().startsWith(itemId + "_"))
+					old.delete();
+			}
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			out.write(data);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file))
+				Log.w(TAG, "unable to write " + file);
+		} catch (IOException e) {
+			Log.w(TAG, "unable to write " + file, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			tmp.delete();
+		}
+	}
+}